@@ -0,0 +1,306 @@
+import model.Request;
+import model.Response;
+import util.BinaryProtocol;
+import util.JsonUtil;
+import util.LatencyHistogram;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Replays captured (requests.jsonl) or synthetic requests against a running WorkerServer.
+//
+//   java LoadGenerator [--capture requests.jsonl | --synthetic 200] [--mode closed|open]
+//                      [--concurrency 8] [--rate 20] [--duration 60] [--expected-interval-ms N]
+//                      [--keep-file-names] [--binary] [--host localhost] [--port 8888] [--output load]
+//
+// Open loop issues requests on a fixed schedule and measures latency from each request's
+// intended start, so queueing behind a slow server is not hidden (coordinated omission).
+// Closed loop is corrected the same way from the expected interval per client, given directly
+// or derived from --rate; one of the two is required.
+//
+// Each replay gets a unique fileName by default: the worker treats a repeated (userId, fileName)
+// as a revision of the same draft and answers it from its revision cache, which would measure
+// the cache rather than the detector. --keep-file-names replays the captured names as-is.
+public class LoadGenerator {
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final Map<String, String> options;
+    private final List<Request> requests;
+    private final LatencyHistogram corrected = new LatencyHistogram(MAX_LATENCY_MICROS);
+    private final LatencyHistogram raw = new LatencyHistogram(MAX_LATENCY_MICROS);
+    private final Map<String, AtomicLong> statuses = new ConcurrentSkipListMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong replays = new AtomicLong();
+
+    private LoadGenerator(Map<String, String> options, List<Request> requests) {
+        this.options = options;
+        this.requests = requests;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        List<Request> requests = options.containsKey("capture")
+                ? readCapture(Paths.get(options.get("capture")))
+                : synthetic(Integer.parseInt(options.getOrDefault("synthetic", "200")), Paths.get("data_text"));
+        if (requests.isEmpty()) {
+            System.err.println("No requests to replay");
+            return;
+        }
+        new LoadGenerator(options, requests).run();
+    }
+
+    private void run() throws Exception {
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "8"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+        boolean open = "open".equals(options.getOrDefault("mode", "closed"));
+        long expectedMicros = open ? 0 : expectedIntervalMicros(concurrency);
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        if (open) {
+            double rate = Double.parseDouble(options.getOrDefault("rate", "10"));
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            for (int i = 0; i < concurrency; i++) {
+                clients.submit(() -> openLoop(start, intervalNanos, deadline));
+            }
+        } else {
+            for (int i = 0; i < concurrency; i++) {
+                clients.submit(() -> closedLoop(expectedMicros, deadline));
+            }
+        }
+        clients.shutdown();
+        clients.awaitTermination(durationNanos + TimeUnit.MINUTES.toNanos(5), TimeUnit.NANOSECONDS);
+        report(System.nanoTime() - start);
+    }
+
+    private void closedLoop(long expectedMicros, long deadline) {
+        while (System.nanoTime() < deadline) {
+            long sent = System.nanoTime();
+            send(nextRequest());
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent);
+            raw.recordValue(micros);
+            corrected.recordValueWithExpectedInterval(micros, expectedMicros);
+        }
+    }
+
+    private void openLoop(long start, long intervalNanos, long deadline) {
+        while (true) {
+            long intended = start + sequence.getAndIncrement() * intervalNanos;
+            if (intended >= deadline) {
+                return;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long sent = System.nanoTime();
+            send(nextRequest());
+            long done = System.nanoTime();
+            raw.recordValue(TimeUnit.NANOSECONDS.toMicros(done - sent));
+            corrected.recordValue(TimeUnit.NANOSECONDS.toMicros(done - intended));
+        }
+    }
+
+    private long expectedIntervalMicros(int concurrency) {
+        if (options.containsKey("expected-interval-ms")) {
+            return TimeUnit.MILLISECONDS.toMicros(Long.parseLong(options.get("expected-interval-ms")));
+        }
+        if (options.containsKey("rate")) {
+            return (long) (concurrency * 1_000_000.0 / Double.parseDouble(options.get("rate")));
+        }
+        throw new IllegalArgumentException("Closed loop needs --expected-interval-ms or --rate "
+                + "to correct for coordinated omission");
+    }
+
+    private Request nextRequest() {
+        Request template = requests.get(ThreadLocalRandom.current().nextInt(requests.size()));
+        if (options.containsKey("keep-file-names")) {
+            return template;
+        }
+        Request request = new Request();
+        request.setRequestId(template.getRequestId());
+        request.setUserId(template.getUserId());
+        request.setFileName(template.getFileName() + "#" + replays.incrementAndGet());
+        request.setAction(template.getAction());
+        request.setJobId(template.getJobId());
+        request.setFullText(template.getFullText());
+        return request;
+    }
+
+    private void send(Request request) {
+        String status;
+        boolean binary = options.containsKey("binary");
+        try (Socket socket = new Socket(options.getOrDefault("host", "localhost"),
+                Integer.parseInt(options.getOrDefault("port", "8888")))) {
+            Response response;
+            if (binary) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                BinaryProtocol.writeRequest(out, request);
+                response = BinaryProtocol.readResponse(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            } else {
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                writer.write(JsonUtil.toJson(request));
+                writer.write("\n");
+                writer.flush();
+                String line = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                if (line == null) {
+                    throw new IOException("Connection closed without response");
+                }
+                response = JsonUtil.parseResponse(line);
+            }
+            status = response.getStatus();
+        } catch (IOException e) {
+            status = "IO_ERROR";
+        }
+        statuses.computeIfAbsent(status, s -> new AtomicLong()).incrementAndGet();
+    }
+
+    private void report(long elapsedNanos) throws IOException {
+        long total = statuses.values().stream().mapToLong(AtomicLong::get).sum();
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "Requests: %d in %.1f s (%.2f req/s)%n", total, seconds, total / seconds);
+        for (Map.Entry<String, AtomicLong> status : statuses.entrySet()) {
+            System.out.printf(Locale.ROOT, "  %-10s %8d  %6.2f%%%n", status.getKey(), status.getValue().get(),
+                    100.0 * status.getValue().get() / Math.max(1, total));
+        }
+        for (double p : new double[] {50, 90, 99, 99.9, 100}) {
+            System.out.printf(Locale.ROOT, "  p%-5s corrected %10.3f ms   raw %10.3f ms%n", p,
+                    corrected.getValueAtPercentile(p) / 1000.0, raw.getValueAtPercentile(p) / 1000.0);
+        }
+        String prefix = options.getOrDefault("output", "load");
+        writeHistogram(corrected, Paths.get(prefix + "-corrected.hgrm"));
+        writeHistogram(raw, Paths.get(prefix + "-raw.hgrm"));
+        System.out.println("Histograms written to " + prefix + "-corrected.hgrm and " + prefix + "-raw.hgrm (ms)");
+    }
+
+    private static void writeHistogram(LatencyHistogram histogram, Path path) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(path), false, StandardCharsets.UTF_8)) {
+            histogram.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private static List<Request> readCapture(Path capture) throws IOException {
+        byte[] bytes = Files.readAllBytes(capture);
+        Charset charset = detectCharset(bytes);
+        String text = new String(bytes, charset);
+        if (!text.isEmpty() && text.charAt(0) == '\uFEFF') {
+            text = text.substring(1);
+        }
+        List<Request> requests = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : text.split("\r?\n")) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                requests.add(toRequest(JsonUtil.parseObject(line), lineNumber));
+            } catch (IOException e) {
+                System.err.println("Skipping line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Loaded " + requests.size() + " requests from " + capture + " (" + charset + ")");
+        return requests;
+    }
+
+    private static Charset detectCharset(byte[] bytes) {
+        if (bytes.length >= 2 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        if (bytes.length >= 2 && (bytes[0] & 0xFF) == 0xFE && (bytes[1] & 0xFF) == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        // Without a BOM, ASCII-heavy UTF-16 shows up as zero bytes in every other position.
+        int evenZeros = 0;
+        int oddZeros = 0;
+        for (int i = 0; i < Math.min(bytes.length, 4096); i++) {
+            if (bytes[i] == 0) {
+                if (i % 2 == 0) {
+                    evenZeros++;
+                } else {
+                    oddZeros++;
+                }
+            }
+        }
+        if (oddZeros > evenZeros * 4 && oddZeros > 8) {
+            return StandardCharsets.UTF_16LE;
+        }
+        if (evenZeros > oddZeros * 4 && evenZeros > 8) {
+            return StandardCharsets.UTF_16BE;
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    // Captured requests are replayed as-is; any other JSON line is turned into a check of its text fields.
+    private static Request toRequest(Map<String, Object> obj, int lineNumber) {
+        Request request = new Request();
+        request.setRequestId(string(obj.get("requestId"), "replay-" + lineNumber));
+        request.setUserId(string(obj.get("userId"), "replay"));
+        request.setFileName(string(obj.get("fileName"), "line-" + lineNumber + ".txt"));
+        request.setAction(string(obj.get("action"), null));
+        String fullText = string(obj.get("fullText"), null);
+        if (fullText == null) {
+            fullText = obj.values().stream()
+                    .filter(value -> value instanceof String)
+                    .map(Object::toString)
+                    .collect(Collectors.joining("\n"));
+        }
+        request.setFullText(fullText);
+        return request;
+    }
+
+    private static String string(Object value, String fallback) {
+        return value == null ? fallback : value.toString();
+    }
+
+    // Random windows of corpus text, so most synthetic checks have real LSH candidates.
+    private static List<Request> synthetic(int count, Path dataDir) throws IOException {
+        List<String[]> documents = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(dataDir)) {
+            for (Path path : listing.filter(p -> p.toString().endsWith(".txt")).collect(Collectors.toList())) {
+                documents.add(Files.readString(path, StandardCharsets.UTF_8).split("\\s+"));
+            }
+        }
+        Random random = new Random(42);
+        List<Request> requests = new ArrayList<>();
+        for (int i = 0; i < count && !documents.isEmpty(); i++) {
+            String[] words = documents.get(random.nextInt(documents.size()));
+            int length = Math.min(words.length, 50 + random.nextInt(2000));
+            int from = random.nextInt(Math.max(1, words.length - length + 1));
+            Request request = new Request();
+            request.setRequestId("synthetic-" + i);
+            request.setUserId("user-" + random.nextInt(20));
+            request.setFileName("synthetic-" + i + ".txt");
+            request.setFullText(String.join(" ", Arrays.copyOfRange(words, from, from + length)));
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(key, args[++i]);
+            } else {
+                options.put(key, "true");
+            }
+        }
+        return options;
+    }
+}
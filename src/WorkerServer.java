@@ -1,36 +1,108 @@
 import model.Request;
 import model.Response;
+import service.AdaptiveWorkerPool;
+import service.FairShareQueue;
+import service.JobStore;
 import service.PlagiarismDetector;
+import util.BinaryProtocol;
 import util.JsonUtil;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public class WorkerServer {
     private static final int PORT = 8888;
-    private static final int WORKERS = 4;
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+    private static final int MIN_WORKERS = Integer.getInteger("worker.pool.min", PROCESSORS);
+    private static final int MAX_WORKERS = Integer.getInteger("worker.pool.max", PROCESSORS * 8);
+    private static final int MAX_LARGE_WORKERS = Integer.getInteger("worker.pool.largeMax", Math.max(1, PROCESSORS / 4));
+    private static final int LARGE_DOC_CHARS = Integer.getInteger("worker.pool.largeDocChars", 200_000);
+    private static final int FAIR_QUANTUM_CHARS = Integer.getInteger("worker.fair.quantumChars", 4_096);
+    private static final int FAIR_MAX_PER_USER = Integer.getInteger("worker.fair.maxPerUser", 0);
+    private static final Map<String, Integer> FAIR_WEIGHTS = parseWeights(System.getProperty("worker.fair.weights", ""));
     private static final Path DATA_DIR = Paths.get("data_text");
+    private static final int JOB_CAPACITY = Integer.getInteger("worker.jobs.capacity", 10000);
+    private static final boolean SERVE_PARTIAL = Boolean.getBoolean("worker.servePartial");
+    private static final long JOB_TTL_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("worker.jobs.ttlSeconds", 600L));
 
-    private final BlockingQueue<ClientTask> queue = new LinkedBlockingQueue<>();
-    private final ExecutorService workerPool = Executors.newFixedThreadPool(WORKERS);
+    // Shared by both lanes so worker.fair.maxPerUser caps a user across the whole pool.
+    private final FairShareQueue.RunningCounts runningPerUser = new FairShareQueue.RunningCounts(FAIR_MAX_PER_USER);
+    private final AdaptiveWorkerPool<ClientTask> workerPool = new AdaptiveWorkerPool<>(MIN_WORKERS, MAX_WORKERS,
+            MAX_LARGE_WORKERS, LARGE_DOC_CHARS, this::process, ClientTask::cost,
+            () -> new FairShareQueue<>(ClientTask::user, ClientTask::cost, FAIR_WEIGHTS, runningPerUser, FAIR_QUANTUM_CHARS));
     private final ExecutorService clientPool = Executors.newCachedThreadPool();
     private final PlagiarismDetector detector = new PlagiarismDetector(DATA_DIR);
+    private final JobStore jobStore = new JobStore(JOB_CAPACITY, JOB_TTL_MILLIS);
     private volatile boolean running = true;
 
     public static void main(String[] args) {
+        if (args.length >= 3 && "--all-pairs".equals(args[0])) {
+            runAllPairs(args);
+            return;
+        }
         new WorkerServer().start();
     }
 
+    // userA:3,userB:1 -- users not listed get weight 1
+    private static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                weights.put(entry.substring(0, colon).trim(), Integer.parseInt(entry.substring(colon + 1).trim()));
+            }
+        }
+        return weights;
+    }
+
+    // --all-pairs <threshold> <output file> [extra directory...]
+    private static void runAllPairs(String[] args) {
+        Path[] dirs = new Path[args.length - 2];
+        dirs[0] = DATA_DIR;
+        for (int i = 3; i < args.length; i++) {
+            dirs[i - 2] = Paths.get(args[i]);
+        }
+        PlagiarismDetector batch = new PlagiarismDetector(dirs);
+        long started = System.nanoTime();
+        batch.loadCorpus();
+        if (!batch.isReady()) {
+            System.err.println("All-pairs job failed: corpus could not be loaded");
+            System.exit(1);
+        }
+        // A report that silently leaves documents out is worse than no report.
+        int refused = batch.refusedDocuments();
+        if (refused > 0) {
+            System.err.println("All-pairs job failed: " + refused
+                    + " documents did not fit the index memory budget (raise worker.index.maxBytes)");
+            System.exit(1);
+        }
+        try {
+            long pairs = batch.writeSimilarPairs(Double.parseDouble(args[1]), Paths.get(args[2]));
+            System.out.println("Wrote " + pairs + " pairs to " + args[2] + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        } catch (IOException e) {
+            System.err.println("All-pairs job failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
     private void start() {
-        startWorkers();
+        workerPool.start();
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("Worker listening on port " + PORT);
             System.out.println("Using data directory: " + DATA_DIR.toAbsolutePath());
+            Thread loader = new Thread(detector::loadCorpus, "corpus-loader");
+            loader.setDaemon(true);
+            loader.start();
             while (running) {
                 Socket socket = serverSocket.accept();
                 clientPool.submit(() -> handleClient(socket));
@@ -42,26 +114,37 @@ public class WorkerServer {
         }
     }
 
-    private void startWorkers() {
-        for (int i = 0; i < WORKERS; i++) {
-            workerPool.submit(() -> {
-                while (running) {
-                    try {
-                        ClientTask task = queue.take();
-                        process(task);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
+    private void process(ClientTask task) {
+        if (task.jobId() != null) {
+            Response response = detector.handle(task.request());
+            response.setJobId(task.jobId());
+            jobStore.complete(task.jobId(), response);
+            return;
+        }
+        switch (task.connection()) {
+            case GONE:
+                System.out.println("Cancelled request " + task.request().getRequestId() + ": client disconnected");
+                task.close();
+                return;
+            case CLOSED_INPUT:
+                // Either a half-close that still wants the answer or a client that gave up; it
+                // goes behind the work already queued and is answered if it is still there.
+                if (!task.deferred) {
+                    task.deferred = true;
+                    System.out.println("Deferred request " + task.request().getRequestId() + ": client closed its side");
+                    workerPool.submit(task);
+                    return;
                 }
-            });
+                break;
+            default:
+                break;
         }
+        reply(task, detector.handle(task.request()));
     }
 
-    private void process(ClientTask task) {
-        Response response = detector.handle(task.request());
+    private void reply(ClientTask task, Response response) {
         try {
-            task.send(JsonUtil.toJson(response));
+            task.send(response);
         } catch (IOException e) {
             System.err.println("Failed to send response: " + e.getMessage());
         } finally {
@@ -70,62 +153,175 @@ public class WorkerServer {
     }
 
     private void handleClient(Socket socket) {
+        boolean binary = false;
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            String payload = reader.readLine();
-            if (payload == null || payload.isEmpty()) {
-                throw new IOException("Empty payload");
-            }
-            Request request = JsonUtil.parseRequest(payload);
-            if (request.getFullText() == null) {
-                throw new IOException("Invalid request");
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            in.mark(1);
+            binary = in.read() == BinaryProtocol.MAGIC;
+            Request request;
+            if (binary) {
+                request = BinaryProtocol.readRequest(new DataInputStream(in));
+            } else {
+                in.reset();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String payload = reader.readLine();
+                if (payload == null || payload.isEmpty()) {
+                    throw new IOException("Empty payload");
+                }
+                request = JsonUtil.parseRequest(payload);
             }
-            queue.put(new ClientTask(request, socket));
+            dispatch(request, new ClientTask(request, socket, in, binary, null));
         } catch (Exception e) {
-            sendError(socket, e.getMessage());
+            sendError(new ClientTask(null, socket, null, binary, null), e.getMessage());
         }
     }
 
-    private void sendError(Socket socket, String message) {
-        try {
-            Response response = new Response();
-            response.setStatus("ERROR");
-            response.setErrorMessage(message);
-            OutputStreamWriter writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
-            writer.write(JsonUtil.toJson(response));
-            writer.write("\n");
-            writer.flush();
-        } catch (IOException ignored) {
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException ignored) {
-            }
+    private void dispatch(Request request, ClientTask client) throws IOException {
+        String action = request.getAction() == null ? "CHECK" : request.getAction().toUpperCase(Locale.ROOT);
+        switch (action) {
+            case "HEALTH":
+                reply(client, detector.health());
+                break;
+            case "STATS":
+                Response stats = detector.stats();
+                stats.getStats().putAll(workerPool.stats());
+                reply(client, stats);
+                break;
+            case "CHECK":
+                requireText(request);
+                if (rejectUntilReady(client)) {
+                    break;
+                }
+                workerPool.submit(client);
+                break;
+            case "SUBMIT":
+                requireText(request);
+                if (rejectUntilReady(client)) {
+                    break;
+                }
+                String jobId = jobStore.create();
+                if (jobId == null) {
+                    reply(client, JobStore.statusResponse(null, "BUSY"));
+                    break;
+                }
+                workerPool.submit(new ClientTask(request, null, null, false, jobId));
+                Response accepted = JobStore.statusResponse(jobId, "ACCEPTED");
+                accepted.setRequestId(request.getRequestId());
+                reply(client, accepted);
+                break;
+            case "GET_RESULT":
+                reply(client, jobStore.result(request.getJobId()));
+                break;
+            case "SUBSCRIBE":
+                jobStore.subscribe(request.getJobId(), response -> reply(client, response));
+                break;
+            default:
+                throw new IOException("Unknown action: " + request.getAction());
+        }
+    }
+
+    private boolean rejectUntilReady(ClientTask client) {
+        if (!detector.isFailed() && (SERVE_PARTIAL || detector.isReady())) {
+            return false;
         }
+        Response response = detector.health();
+        response.setStatus("NOT_READY");
+        response.setErrorMessage(detector.isFailed() ? "Index failed to load" : "Index is still loading");
+        reply(client, response);
+        return true;
+    }
+
+    private void requireText(Request request) throws IOException {
+        if (request.getFullText() == null) {
+            throw new IOException("Invalid request");
+        }
+    }
+
+    private void sendError(ClientTask task, String message) {
+        Response response = new Response();
+        response.setStatus("ERROR");
+        response.setErrorMessage(message);
+        reply(task, response);
     }
 
     private void shutdown() {
         running = false;
-        workerPool.shutdownNow();
+        workerPool.shutdown();
         clientPool.shutdownNow();
     }
 
+    private enum Connection { OPEN, CLOSED_INPUT, GONE }
+
     private static class ClientTask {
         private final Request request;
         private final Socket socket;
+        private final InputStream in;
+        private final boolean binary;
+        private final String jobId;
+        private boolean deferred;
 
-        ClientTask(Request request, Socket socket) {
+        ClientTask(Request request, Socket socket, InputStream in, boolean binary, String jobId) {
             this.request = request;
             this.socket = socket;
+            this.in = in;
+            this.binary = binary;
+            this.jobId = jobId;
         }
 
         Request request() {
             return request;
         }
 
-        void send(String json) throws IOException {
+        String jobId() {
+            return jobId;
+        }
+
+        String user() {
+            return request.getUserId() == null ? "anonymous" : request.getUserId();
+        }
+
+        int cost() {
+            return request.getFullText().length();
+        }
+
+        // EOF cannot tell a half-close from a client that gave up, so only a socket error (e.g. a
+        // reset) means the client is gone. The probe reads through the request stream with
+        // mark/reset so pipelined input is left in place.
+        Connection connection() {
+            int previousTimeout = -1;
+            try {
+                if (in.available() > 0) {
+                    return Connection.OPEN;
+                }
+                previousTimeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
+                in.mark(1);
+                if (in.read() < 0) {
+                    return Connection.CLOSED_INPUT;
+                }
+                in.reset();
+                return Connection.OPEN;
+            } catch (SocketTimeoutException e) {
+                return Connection.OPEN;
+            } catch (IOException e) {
+                return Connection.GONE;
+            } finally {
+                if (previousTimeout >= 0) {
+                    try {
+                        socket.setSoTimeout(previousTimeout);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        void send(Response response) throws IOException {
+            if (binary) {
+                BinaryProtocol.writeResponse(new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())), response);
+                return;
+            }
             OutputStreamWriter writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
-            writer.write(json);
+            writer.write(JsonUtil.toJson(response));
             writer.write("\n");
             writer.flush();
         }
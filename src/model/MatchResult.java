@@ -3,6 +3,7 @@ package model;
 public class MatchResult {
     private String fileName;
     private double similarity;
+    private double containment;
     private String description;
 
     public MatchResult() {
@@ -14,6 +15,11 @@ public class MatchResult {
         this.description = description;
     }
 
+    public MatchResult(String fileName, double similarity, double containment, String description) {
+        this(fileName, similarity, description);
+        this.containment = containment;
+    }
+
     public String getFileName() {
         return fileName;
     }
@@ -30,6 +36,14 @@ public class MatchResult {
         this.similarity = similarity;
     }
 
+    public double getContainment() {
+        return containment;
+    }
+
+    public void setContainment(double containment) {
+        this.containment = containment;
+    }
+
     public String getDescription() {
         return description;
     }
@@ -5,6 +5,8 @@ public class Request {
     private String userId;
     private String fileName;
     private String fullText;
+    private String action;
+    private String jobId;
 
     public String getRequestId() {
         return requestId;
@@ -37,5 +39,20 @@ public class Request {
     public void setFullText(String fullText) {
         this.fullText = fullText;
     }
-}
 
+    public String getAction() {
+        return action;
+    }
+
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+}
@@ -1,12 +1,17 @@
 package model;
 
 import java.util.List;
+import java.util.Map;
 
 public class Response {
     private String requestId;
+    private String jobId;
     private String status;
     private List<MatchResult> matches;
     private String errorMessage;
+    private Integer progress;
+    private boolean partial;
+    private Map<String, Long> stats;
 
     public String getRequestId() {
         return requestId;
@@ -16,6 +21,14 @@ public class Response {
         this.requestId = requestId;
     }
 
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
     public String getStatus() {
         return status;
     }
@@ -39,5 +52,28 @@ public class Response {
     public void setErrorMessage(String errorMessage) {
         this.errorMessage = errorMessage;
     }
-}
 
+    public Integer getProgress() {
+        return progress;
+    }
+
+    public void setProgress(Integer progress) {
+        this.progress = progress;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    public Map<String, Long> getStats() {
+        return stats;
+    }
+
+    public void setStats(Map<String, Long> stats) {
+        this.stats = stats;
+    }
+}
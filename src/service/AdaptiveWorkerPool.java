@@ -0,0 +1,182 @@
+package service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+// Two lanes (small and large documents), each with its own queue and a worker count that the
+// controller moves between configured bounds from queue depth, measured service time and CPU load.
+public class AdaptiveWorkerPool<T> {
+    private static final long CONTROL_INTERVAL_MILLIS = 250;
+    private static final long IDLE_POLL_MILLIS = 200;
+    private static final double CPU_CEILING = 0.9;
+    private static final int IDLE_TICKS_BEFORE_SHRINK = 8;
+
+    private final Consumer<T> handler;
+    private final ToIntFunction<T> sizeOf;
+    private final int largeThreshold;
+    private final Lane small;
+    private final Lane large;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ScheduledExecutorService controller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pool-controller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running = true;
+
+    public AdaptiveWorkerPool(int minWorkers, int maxWorkers, int maxLargeWorkers, int largeThreshold,
+                              Consumer<T> handler, ToIntFunction<T> sizeOf, Supplier<FairShareQueue<T>> queues) {
+        this.handler = handler;
+        this.sizeOf = sizeOf;
+        this.largeThreshold = largeThreshold;
+        this.small = new Lane("small", minWorkers, maxWorkers, queues.get());
+        this.large = new Lane("large", 1, Math.max(1, maxLargeWorkers), queues.get());
+    }
+
+    public void start() {
+        small.grow(small.min);
+        large.grow(large.min);
+        controller.scheduleWithFixedDelay(this::adjust, CONTROL_INTERVAL_MILLIS, CONTROL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void submit(T task) {
+        (sizeOf.applyAsInt(task) >= largeThreshold ? large : small).queue.put(task);
+    }
+
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        small.stats(stats);
+        large.stats(stats);
+        return stats;
+    }
+
+    public void shutdown() {
+        running = false;
+        controller.shutdownNow();
+    }
+
+    private void adjust() {
+        double cpu = cpuLoad();
+        small.adjust(cpu);
+        large.adjust(cpu);
+    }
+
+    private double cpuLoad() {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+        double average = os.getSystemLoadAverage();
+        return average < 0 ? 0 : average / os.getAvailableProcessors();
+    }
+
+    private class Lane {
+        private final String name;
+        private final int min;
+        private final int max;
+        private final FairShareQueue<T> queue;
+        private final AtomicInteger workers = new AtomicInteger();
+        private final AtomicInteger busy = new AtomicInteger();
+        private final AtomicInteger threadIds = new AtomicInteger();
+        private volatile int target;
+        private volatile double serviceNanos;
+        private int idleTicks;
+
+        Lane(String name, int min, int max, FairShareQueue<T> queue) {
+            this.name = name;
+            this.queue = queue;
+            this.min = Math.max(1, min);
+            this.max = Math.max(this.min, max);
+        }
+
+        void adjust(double cpu) {
+            int depth = queue.size();
+            int current = target;
+            if (depth > 0 && current < max && cpu < CPU_CEILING) {
+                // Only grow while the backlog is worth more than one service time per worker.
+                double backlogNanos = depth * Math.max(serviceNanos, 1) / Math.max(1, current);
+                if (serviceNanos == 0 || backlogNanos > serviceNanos) {
+                    grow(Math.min(max - current, Math.max(1, Math.min(depth, current / 2))));
+                }
+                idleTicks = 0;
+            } else if (cpu >= CPU_CEILING && current > min && depth > 0) {
+                target = current - 1;
+            } else if (depth == 0 && busy.get() < current && current > min) {
+                if (++idleTicks >= IDLE_TICKS_BEFORE_SHRINK) {
+                    target = current - 1;
+                    idleTicks = 0;
+                }
+            } else {
+                idleTicks = 0;
+            }
+        }
+
+        synchronized void grow(int count) {
+            target += count;
+            for (int i = 0; i < count; i++) {
+                workers.incrementAndGet();
+                Thread thread = new Thread(this::runWorker, "worker-" + name + "-" + threadIds.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void runWorker() {
+            while (running && !retire()) {
+                T task;
+                try {
+                    task = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (task == null) {
+                    continue;
+                }
+                busy.incrementAndGet();
+                long started = System.nanoTime();
+                try {
+                    handler.accept(task);
+                } catch (RuntimeException e) {
+                    System.err.println("Worker task failed: " + e.getMessage());
+                } finally {
+                    queue.release(task);
+                    busy.decrementAndGet();
+                    long elapsed = System.nanoTime() - started;
+                    serviceNanos = serviceNanos == 0 ? elapsed : serviceNanos * 0.8 + elapsed * 0.2;
+                }
+            }
+        }
+
+        private boolean retire() {
+            while (true) {
+                int current = workers.get();
+                if (current <= target) {
+                    return false;
+                }
+                if (workers.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void stats(Map<String, Long> stats) {
+            stats.put(name + "Workers", (long) workers.get());
+            stats.put(name + "Busy", (long) busy.get());
+            stats.put(name + "QueueDepth", (long) queue.size());
+            stats.put(name + "ActiveUsers", (long) queue.activeUsers());
+            stats.put(name + "ServiceMillis", (long) (serviceNanos / 1_000_000));
+        }
+    }
+}
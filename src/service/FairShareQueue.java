@@ -0,0 +1,186 @@
+package service;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+// Deficit round-robin over per-user flows. Each visit credits a flow with quantum * weight units of
+// cost (characters of text), so a user with one short check is served within a round even when
+// another user has hundreds of documents queued, while a lone bulk user still gets every worker.
+// The per-user running cap lives in a RunningCounts that several queues (e.g. the pool's lanes)
+// can share, so it bounds a user across all of them.
+public class FairShareQueue<T> {
+    private final Function<T, String> keyOf;
+    private final ToIntFunction<T> costOf;
+    private final Map<String, Integer> weights;
+    private final RunningCounts running;
+    private final int quantum;
+    private final Map<String, Flow> flows = new HashMap<>();
+    private final ArrayDeque<Flow> backlogged = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int size;
+
+    public FairShareQueue(Function<T, String> keyOf, ToIntFunction<T> costOf, Map<String, Integer> weights,
+                          RunningCounts running, int quantum) {
+        this.keyOf = keyOf;
+        this.costOf = costOf;
+        this.weights = weights;
+        this.running = running;
+        this.quantum = Math.max(1, quantum);
+    }
+
+    public void put(T task) {
+        lock.lock();
+        try {
+            String key = keyOf.apply(task);
+            Flow flow = flows.computeIfAbsent(key, Flow::new);
+            flow.tasks.addLast(task);
+            if (!flow.backlogged) {
+                flow.backlogged = true;
+                flow.deficit = 0;
+                backlogged.addLast(flow);
+            }
+            size++;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                T task = next();
+                if (task != null) {
+                    return task;
+                }
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = available.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(T task) {
+        String key = keyOf.apply(task);
+        running.release(key);
+        lock.lock();
+        try {
+            Flow flow = flows.get(key);
+            if (flow == null) {
+                return;
+            }
+            flow.running--;
+            if (flow.running <= 0 && !flow.backlogged) {
+                flows.remove(flow.key);
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int activeUsers() {
+        lock.lock();
+        try {
+            return flows.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private T next() {
+        int cappedInARow = 0;
+        while (!backlogged.isEmpty()) {
+            Flow flow = backlogged.peekFirst();
+            T head = flow.tasks.peekFirst();
+            int cost = Math.max(1, costOf.applyAsInt(head));
+            if (flow.deficit < cost) {
+                flow.deficit += (long) quantum * Math.max(1, weights.getOrDefault(flow.key, 1));
+                backlogged.addLast(backlogged.pollFirst());
+                cappedInARow = 0;
+                continue;
+            }
+            if (!running.tryAcquire(flow.key)) {
+                if (++cappedInARow >= backlogged.size()) {
+                    return null;
+                }
+                backlogged.addLast(backlogged.pollFirst());
+                continue;
+            }
+            cappedInARow = 0;
+            flow.deficit -= cost;
+            flow.tasks.pollFirst();
+            flow.running++;
+            size--;
+            if (flow.tasks.isEmpty()) {
+                backlogged.pollFirst();
+                flow.backlogged = false;
+                flow.deficit = 0;
+            }
+            return head;
+        }
+        return null;
+    }
+
+    // Running tasks per user, checked and taken atomically so queues sharing it cannot both
+    // admit a user that is one below the cap.
+    public static class RunningCounts {
+        private final Map<String, Integer> counts = new ConcurrentHashMap<>();
+        private final int max;
+
+        public RunningCounts(int max) {
+            this.max = max <= 0 ? Integer.MAX_VALUE : max;
+        }
+
+        boolean tryAcquire(String key) {
+            boolean[] acquired = new boolean[1];
+            counts.compute(key, (k, count) -> {
+                int current = count == null ? 0 : count;
+                if (current >= max) {
+                    return count;
+                }
+                acquired[0] = true;
+                return current + 1;
+            });
+            return acquired[0];
+        }
+
+        void release(String key) {
+            counts.computeIfPresent(key, (k, count) -> count <= 1 ? null : count - 1);
+        }
+    }
+
+    private class Flow {
+        private final String key;
+        private final ArrayDeque<T> tasks = new ArrayDeque<>();
+        private long deficit;
+        private int running;
+        private boolean backlogged;
+
+        Flow(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package service;
+
+import model.Response;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+public class JobStore {
+    private final int capacity;
+    private final long ttlMillis;
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    public JobStore(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public synchronized String create() {
+        if (jobs.size() >= capacity) {
+            evict();
+        }
+        if (jobs.size() >= capacity) {
+            return null;
+        }
+        String jobId = UUID.randomUUID().toString();
+        jobs.put(jobId, new Job());
+        return jobId;
+    }
+
+    public void complete(String jobId, Response response) {
+        List<Consumer<Response>> listeners;
+        synchronized (this) {
+            Job job = jobs.get(jobId);
+            if (job == null) {
+                return;
+            }
+            job.result = response;
+            job.expiresAt = System.currentTimeMillis() + ttlMillis;
+            listeners = job.listeners;
+            job.listeners = new ArrayList<>();
+        }
+        for (Consumer<Response> listener : listeners) {
+            listener.accept(response);
+        }
+    }
+
+    public synchronized Response result(String jobId) {
+        Job job = lookup(jobId);
+        if (job == null) {
+            return statusResponse(jobId, "NOT_FOUND");
+        }
+        return job.result != null ? job.result : statusResponse(jobId, "PENDING");
+    }
+
+    public void subscribe(String jobId, Consumer<Response> listener) {
+        Response ready;
+        synchronized (this) {
+            Job job = lookup(jobId);
+            if (job == null) {
+                ready = statusResponse(jobId, "NOT_FOUND");
+            } else if (job.result == null) {
+                job.listeners.add(listener);
+                return;
+            } else {
+                ready = job.result;
+            }
+        }
+        listener.accept(ready);
+    }
+
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    private Job lookup(String jobId) {
+        if (jobId == null) {
+            return null;
+        }
+        Job job = jobs.get(jobId);
+        if (job != null && job.isExpired(System.currentTimeMillis())) {
+            jobs.remove(jobId);
+            return null;
+        }
+        return job;
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.isExpired(now));
+        Iterator<Job> it = jobs.values().iterator();
+        while (jobs.size() >= capacity && it.hasNext()) {
+            if (it.next().result != null) {
+                it.remove();
+            }
+        }
+    }
+
+    public static Response statusResponse(String jobId, String status) {
+        Response response = new Response();
+        response.setJobId(jobId);
+        response.setStatus(status);
+        return response;
+    }
+
+    private static class Job {
+        private Response result;
+        private long expiresAt = Long.MAX_VALUE;
+        private List<Consumer<Response>> listeners = new ArrayList<>();
+
+        boolean isExpired(long now) {
+            return result != null && now >= expiresAt;
+        }
+    }
+}
@@ -8,14 +8,27 @@ import util.MinHash;
 import util.ShingleGenerator;
 import util.TextPreprocessor;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 public class PlagiarismDetector {
     private static final int SHINGLE_SIZE = 3;
@@ -23,63 +36,228 @@ public class PlagiarismDetector {
     private static final int BANDS = 150;
     private static final int ROWS = 2;
     private static final double MIN_SIMILARITY = 0.01;
+    private static final double CLUSTER_SIMILARITY =
+            Double.parseDouble(System.getProperty("worker.clusterSimilarity", "0.9"));
+    private static final double STOP_SHINGLE_FRACTION =
+            Double.parseDouble(System.getProperty("worker.stopShingleFraction", "0.2"));
+    private static final int STOP_SHINGLE_MIN_DOCS = Integer.getInteger("worker.stopShingleMinDocs", 5);
+    private static final boolean WEIGHTED_SIGNATURES = Boolean.getBoolean("worker.weightedSignatures");
+    private static final long INDEX_MAX_BYTES = Long.getLong("worker.index.maxBytes", Runtime.getRuntime().maxMemory() * 6 / 10);
+    private static final String INDEX_BUDGET_RESPONSES =
+            System.getProperty("worker.index.onBudgetExceeded", "COMPACT_POSTINGS,REFUSE");
+    private static final double MIN_CONTAINMENT =
+            Double.parseDouble(System.getProperty("worker.minContainment", "0.3"));
+    private static final int CONTAINMENT_SAMPLE_RATE = Integer.getInteger("worker.containmentSampleRate", 16);
+    private static final int REVISION_CACHE_SIZE = Integer.getInteger("worker.revisions.capacity", 1000);
 
     private final LSHIndex index;
     private final ShingleGenerator shingleGenerator;
+    private final List<Path> dataDirs;
+    private final RevisionCache revisions = new RevisionCache(REVISION_CACHE_SIZE);
+    private final AtomicInteger loadedFiles = new AtomicInteger();
+    private volatile int totalFiles = -1;
+    private volatile String state = "STARTING";
 
-    public PlagiarismDetector(Path dataDir) {
+    public PlagiarismDetector(Path... dataDirs) {
         MinHash minHash = new MinHash(HASH_FUNCTIONS);
-        this.index = new LSHIndex(BANDS, ROWS, minHash);
+        this.index = new LSHIndex(BANDS, ROWS, minHash, CLUSTER_SIMILARITY);
+        this.index.setStopShingles(STOP_SHINGLE_FRACTION, STOP_SHINGLE_MIN_DOCS);
+        this.index.setWeighted(WEIGHTED_SIGNATURES);
+        this.index.setContainment(MIN_CONTAINMENT, CONTAINMENT_SAMPLE_RATE);
+        this.index.setMemoryBudget(INDEX_MAX_BYTES, Arrays.asList(INDEX_BUDGET_RESPONSES.toUpperCase(Locale.ROOT).split("\\s*,\\s*")));
         this.shingleGenerator = new ShingleGenerator(SHINGLE_SIZE);
-        loadCorpus(dataDir);
+        this.dataDirs = Arrays.asList(dataDirs);
     }
 
-    private void loadCorpus(Path dataDir) {
-        if (!Files.exists(dataDir)) {
-            System.err.println("Data directory not found: " + dataDir.toAbsolutePath());
-            return;
-        }
+    public void loadCorpus() {
+        state = "LOADING";
         try {
-            Files.list(dataDir)
-                    .filter(path -> path.getFileName().toString().toLowerCase().endsWith(".txt"))
-                    .forEach(this::addDocument);
-        } catch (IOException e) {
-            System.err.println("Failed to load corpus: " + e.getMessage());
+            Map<Path, String> files = new LinkedHashMap<>();
+            for (Path dataDir : dataDirs) {
+                listDocuments(dataDir, files);
+            }
+            boolean countFirst = index.usesDocumentFrequency();
+            totalFiles = countFirst ? files.size() * 2 : files.size();
+            // The counting pass keeps each file's fingerprints (which the index stores anyway), so
+            // the indexing pass does not read and shingle every file a second time.
+            Map<Path, long[]> parsed = new ConcurrentHashMap<>();
+            if (countFirst) {
+                files.keySet().parallelStream().forEach(file -> {
+                    long[] fingerprints = parse(file);
+                    if (fingerprints != null) {
+                        index.countDocument(fingerprints);
+                        parsed.put(file, fingerprints);
+                    }
+                    loadedFiles.incrementAndGet();
+                });
+                index.finishCounting();
+                System.out.println("Stop shingles: " + index.stopShingleCount());
+            }
+            // Parsing and hashing run in parallel, but documents are added in sorted order so the
+            // same corpus always produces the same cluster representatives.
+            files.entrySet().parallelStream()
+                    .map(file -> {
+                        long[] fingerprints = countFirst ? parsed.remove(file.getKey()) : parse(file.getKey());
+                        return fingerprints == null ? null : index.entry(file.getValue(), fingerprints);
+                    })
+                    .forEachOrdered(entry -> {
+                        if (entry != null) {
+                            addDocument(entry);
+                        }
+                        loadedFiles.incrementAndGet();
+                    });
+            System.out.println("Indexed " + index.size() + " documents in " + index.clusterCount() + " clusters");
+            state = "READY";
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to load corpus: " + e);
+        } finally {
+            // A missing or partly built index must not be reported as ready, and an Error (most
+            // likely OutOfMemoryError) must not leave HEALTH stuck at LOADING either.
+            if (!isReady()) {
+                state = "FAILED";
+            }
+        }
+    }
+
+    // Documents from the first directory keep their bare file name; later directories (e.g. new
+    // submissions for a batch report) are prefixed with their directory name on collision.
+    private void listDocuments(Path dataDir, Map<Path, String> files) throws IOException {
+        if (!Files.isDirectory(dataDir)) {
+            throw new NoSuchFileException(dataDir.toAbsolutePath().toString(), null, "data directory not found");
+        }
+        Set<String> names = new HashSet<>(files.values());
+        try (Stream<Path> listing = Files.list(dataDir)) {
+            listing.filter(path -> path.getFileName().toString().toLowerCase().endsWith(".txt"))
+                    .sorted()
+                    .forEach(path -> {
+                        String name = path.getFileName().toString();
+                        if (!names.add(name)) {
+                            name = dataDir.getFileName() + "/" + name;
+                        }
+                        files.put(path, name);
+                    });
+        }
+    }
+
+    public long writeSimilarPairs(double threshold, Path output) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            AtomicLong written = new AtomicLong();
+            long verified;
+            try {
+                verified = index.selfJoin(threshold, (first, second, similarity) -> {
+                    String line = first + "\t" + second + "\t" + String.format(Locale.ROOT, "%.4f", similarity);
+                    synchronized (writer) {
+                        try {
+                            writer.write(line);
+                            writer.newLine();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    written.incrementAndGet();
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            System.out.println("Verified " + verified + " candidate pairs, " + written.get() + " above " + threshold);
+            return written.get();
+        }
+    }
+
+    public boolean isReady() {
+        return "READY".equals(state);
+    }
+
+    public boolean isFailed() {
+        return "FAILED".equals(state);
+    }
+
+    public int refusedDocuments() {
+        return index.refusedDocuments();
+    }
+
+    public Response health() {
+        Response response = new Response();
+        response.setStatus(state);
+        response.setProgress(loadProgress());
+        return response;
+    }
+
+    public Response stats() {
+        Runtime runtime = Runtime.getRuntime();
+        Map<String, Long> stats = index.memoryStats();
+        stats.put("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+        stats.put("heapMaxBytes", runtime.maxMemory());
+        revisions.stats(stats);
+        Response response = new Response();
+        response.setStatus("SUCCESS");
+        response.setStats(stats);
+        return response;
+    }
+
+    private int loadProgress() {
+        if (isReady()) {
+            return 100;
         }
+        int total = totalFiles;
+        return total <= 0 ? 0 : loadedFiles.get() * 100 / total;
     }
 
-    private void addDocument(Path path) {
+    private long[] parse(Path path) {
         try {
-            String content = Files.readString(path, StandardCharsets.UTF_8);
-            String normalized = TextPreprocessor.normalize(content);
-            Set<String> shingles = shingleGenerator.shingles(normalized);
-            index.add(path.getFileName().toString(), normalized, shingles);
-            System.out.println("Indexed " + path.getFileName());
+            String normalized = TextPreprocessor.normalize(Files.readString(path, StandardCharsets.UTF_8));
+            return ShingleGenerator.fingerprints(shingleGenerator.shingles(normalized));
         } catch (IOException e) {
             System.err.println("Failed to read " + path + ": " + e.getMessage());
+            return null;
         }
     }
 
+    private void addDocument(LSHIndex.IndexEntry entry) {
+        if (!index.add(entry)) {
+            System.err.println("Skipped " + entry.fileName() + ": index memory budget exceeded");
+            return;
+        }
+        System.out.println("Indexed " + entry.fileName());
+    }
+
     public Response handle(Request request) {
+        boolean partial = !isReady();
         try {
             String normalized = TextPreprocessor.normalize(request.getFullText());
             Set<String> queryShingles = shingleGenerator.shingles(normalized);
             if (queryShingles.isEmpty()) {
                 return errorResponse(request.getRequestId(), "Document empty after preprocessing");
             }
-            List<LSHIndex.SimilarityResult> similar = index.query(queryShingles, MIN_SIMILARITY);
+            long[] queryFingerprints = ShingleGenerator.fingerprints(queryShingles);
+            RevisionCache.Revision previous = revisions.get(request.getUserId(), request.getFileName());
+            LSHIndex.QueryState query = previous == null
+                    ? index.prepare(queryFingerprints)
+                    : index.revise(previous.query(), queryFingerprints);
+            List<LSHIndex.SimilarityResult> similar = index.query(query,
+                    previous == null ? Collections.emptyMap() : previous.intersections(), MIN_SIMILARITY);
             List<MatchResult> matchResults = new ArrayList<>();
+            Map<String, Integer> intersections = new HashMap<>();
             for (LSHIndex.SimilarityResult result : similar) {
-                Set<String> candidate = new HashSet<>(shingleGenerator.shingles(result.content));
-                double jaccard = ShingleGenerator.jaccard(queryShingles, candidate);
-                String description = String.format("Similarity: %.2f%%", jaccard * 100);
+                int shared = result.intersection >= 0
+                        ? result.intersection
+                        : ShingleGenerator.intersectionSize(queryFingerprints, result.fingerprints);
+                intersections.put(result.fileName, shared);
+                double jaccard = (double) shared / (queryFingerprints.length + result.fingerprints.length - shared);
+                double containment = (double) shared / queryFingerprints.length;
+                String description = String.format("Similarity: %.2f%%, containment: %.2f%%", jaccard * 100, containment * 100);
                 System.out.println(description);
-                matchResults.add(new MatchResult(result.fileName, jaccard, description));
+                matchResults.add(new MatchResult(result.fileName, jaccard, containment, description));
             }
+            // A short text copied from a long source has low Jaccard but high containment.
+            matchResults.sort((a, b) -> Double.compare(Math.max(b.getSimilarity(), b.getContainment()),
+                    Math.max(a.getSimilarity(), a.getContainment())));
+            revisions.put(request.getUserId(), request.getFileName(), query, intersections);
             Response response = new Response();
             response.setRequestId(request.getRequestId());
             response.setStatus("SUCCESS");
             response.setMatches(matchResults);
+            response.setPartial(partial);
             return response;
         } catch (Exception e) {
             return errorResponse(request.getRequestId(), "Internal error: " + e.getMessage());
@@ -94,4 +272,3 @@ public class PlagiarismDetector {
         return response;
     }
 }
-
@@ -0,0 +1,76 @@
+package service;
+
+import util.LSHIndex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Most recently checked revision per (userId, fileName): its fingerprints and MinHash state, plus
+// the exact intersection with every document it matched, so the next draft is checked as a delta.
+public class RevisionCache {
+    private final int capacity;
+    private final Map<String, Revision> revisions = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+
+    public RevisionCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized Revision get(String userId, String fileName) {
+        if (capacity <= 0 || userId == null || fileName == null) {
+            return null;
+        }
+        Revision revision = revisions.get(key(userId, fileName));
+        if (revision == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return revision;
+    }
+
+    public synchronized void put(String userId, String fileName, LSHIndex.QueryState query,
+                                 Map<String, Integer> intersections) {
+        if (capacity <= 0 || userId == null || fileName == null) {
+            return;
+        }
+        revisions.put(key(userId, fileName), new Revision(query.withoutDelta(), intersections));
+        while (revisions.size() > capacity) {
+            revisions.remove(revisions.keySet().iterator().next());
+        }
+    }
+
+    public synchronized void stats(Map<String, Long> stats) {
+        long bytes = 0;
+        for (Revision revision : revisions.values()) {
+            bytes += revision.query.sizeInBytes() + revision.intersections.size() * 48L;
+        }
+        stats.put("revisionEntries", (long) revisions.size());
+        stats.put("revisionBytes", bytes);
+        stats.put("revisionHits", hits);
+        stats.put("revisionMisses", misses);
+    }
+
+    private static String key(String userId, String fileName) {
+        return userId + "\u0000" + fileName;
+    }
+
+    public static class Revision {
+        private final LSHIndex.QueryState query;
+        private final Map<String, Integer> intersections;
+
+        Revision(LSHIndex.QueryState query, Map<String, Integer> intersections) {
+            this.query = query;
+            this.intersections = intersections;
+        }
+
+        public LSHIndex.QueryState query() {
+            return query;
+        }
+
+        public Map<String, Integer> intersections() {
+            return intersections;
+        }
+    }
+}
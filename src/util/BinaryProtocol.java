@@ -0,0 +1,240 @@
+package util;
+
+import model.MatchResult;
+import model.Request;
+import model.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Length-prefixed binary alternative to the JSON line protocol. A client opts in by sending
+ * {@link #MAGIC} as the first byte on the connection, followed by a single request frame;
+ * the worker answers with a single response frame. Every frame is a {@link #VERSION} byte, an
+ * int length and that many bytes; a frame with any other version is rejected rather than
+ * misparsed. Strings are an int byte count (-1 for null) followed by UTF-8 bytes.
+ */
+public final class BinaryProtocol {
+    public static final int MAGIC = 0xB1;
+    // Bump whenever the frame layout changes.
+    public static final int VERSION = 1;
+    public static final int FLAG_DEFLATED = 1;
+    public static final int COMPRESS_THRESHOLD = 1024;
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    private static final String[] STATUSES = {"SUCCESS", "ERROR", "ACCEPTED", "PENDING", "NOT_FOUND", "BUSY",
+            "STARTING", "LOADING", "READY", "NOT_READY", "FAILED"};
+
+    private BinaryProtocol() {}
+
+    public static Request readRequest(DataInputStream in) throws IOException {
+        DataInputStream frame = readFrame(in);
+        int flags = frame.readUnsignedByte();
+        Request request = new Request();
+        request.setRequestId(readString(frame));
+        request.setUserId(readString(frame));
+        request.setFileName(readString(frame));
+        request.setAction(readString(frame));
+        request.setJobId(readString(frame));
+        int rawLength = frame.readInt();
+        if (rawLength < 0) {
+            return request;
+        }
+        if (rawLength > MAX_FRAME_BYTES) {
+            throw new IOException("Text too large: " + rawLength);
+        }
+        byte[] payload = frame.readAllBytes();
+        byte[] raw = (flags & FLAG_DEFLATED) != 0 ? inflate(payload, rawLength) : payload;
+        request.setFullText(new String(raw, StandardCharsets.UTF_8));
+        return request;
+    }
+
+    public static void writeRequest(DataOutputStream out, Request request) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream frame = new DataOutputStream(buffer);
+        byte[] raw = request.getFullText() == null ? null : request.getFullText().getBytes(StandardCharsets.UTF_8);
+        boolean deflate = raw != null && raw.length >= COMPRESS_THRESHOLD;
+        frame.writeByte(deflate ? FLAG_DEFLATED : 0);
+        writeString(frame, request.getRequestId());
+        writeString(frame, request.getUserId());
+        writeString(frame, request.getFileName());
+        writeString(frame, request.getAction());
+        writeString(frame, request.getJobId());
+        if (raw == null) {
+            frame.writeInt(-1);
+        } else {
+            frame.writeInt(raw.length);
+            frame.write(deflate ? deflate(raw) : raw);
+        }
+        out.writeByte(MAGIC);
+        writeFrame(out, buffer.toByteArray());
+    }
+
+    public static void writeResponse(DataOutputStream out, Response response) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream frame = new DataOutputStream(buffer);
+        frame.writeByte(statusCode(response.getStatus()));
+        writeString(frame, response.getRequestId());
+        writeString(frame, response.getJobId());
+        writeString(frame, response.getErrorMessage());
+        frame.writeInt(response.getProgress() == null ? -1 : response.getProgress());
+        frame.writeBoolean(response.isPartial());
+        Map<String, Long> stats = response.getStats();
+        frame.writeInt(stats == null ? -1 : stats.size());
+        if (stats != null) {
+            for (Map.Entry<String, Long> stat : stats.entrySet()) {
+                writeString(frame, stat.getKey());
+                frame.writeLong(stat.getValue());
+            }
+        }
+        List<MatchResult> matches = response.getMatches();
+        frame.writeInt(matches == null ? -1 : matches.size());
+        if (matches != null) {
+            for (MatchResult match : matches) {
+                frame.writeDouble(match.getSimilarity());
+                frame.writeDouble(match.getContainment());
+                writeString(frame, match.getFileName());
+                writeString(frame, match.getDescription());
+            }
+        }
+        writeFrame(out, buffer.toByteArray());
+    }
+
+    public static Response readResponse(DataInputStream in) throws IOException {
+        DataInputStream frame = readFrame(in);
+        Response response = new Response();
+        int code = frame.readUnsignedByte();
+        if (code >= STATUSES.length) {
+            throw new IOException("Unknown status code: " + code);
+        }
+        response.setStatus(STATUSES[code]);
+        response.setRequestId(readString(frame));
+        response.setJobId(readString(frame));
+        response.setErrorMessage(readString(frame));
+        int progress = frame.readInt();
+        response.setProgress(progress < 0 ? null : progress);
+        response.setPartial(frame.readBoolean());
+        int statCount = frame.readInt();
+        if (statCount >= 0) {
+            Map<String, Long> stats = new LinkedHashMap<>();
+            for (int i = 0; i < statCount; i++) {
+                String key = readString(frame);
+                stats.put(key, frame.readLong());
+            }
+            response.setStats(stats);
+        }
+        int count = frame.readInt();
+        if (count >= 0) {
+            List<MatchResult> matches = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                double similarity = frame.readDouble();
+                double containment = frame.readDouble();
+                String fileName = readString(frame);
+                String description = readString(frame);
+                matches.add(new MatchResult(fileName, similarity, containment, description));
+            }
+            response.setMatches(matches);
+        }
+        return response;
+    }
+
+    private static int statusCode(String status) throws IOException {
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (STATUSES[i].equals(status)) {
+                return i;
+            }
+        }
+        throw new IOException("Status not encodable: " + status);
+    }
+
+    private static DataInputStream readFrame(DataInputStream in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary protocol version: " + version + " (expected " + VERSION + ")");
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] body) throws IOException {
+        out.writeByte(VERSION);
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] payload, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            byte[] raw = new byte[rawLength];
+            int filled = 0;
+            while (filled < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, filled, rawLength - filled);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                filled += n;
+            }
+            if (filled != rawLength) {
+                throw new IOException("Compressed text shorter than declared length");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed text: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
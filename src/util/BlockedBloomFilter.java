@@ -0,0 +1,66 @@
+package util;
+
+import java.io.Serializable;
+
+public class BlockedBloomFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+    private final long[] words;
+    private final int blocks;
+
+    public BlockedBloomFilter(long[] fingerprints) {
+        long bits = Math.max(1L, (long) fingerprints.length * BITS_PER_KEY);
+        this.blocks = (int) Math.max(1, (bits + 511) / 512);
+        this.words = new long[blocks * WORDS_PER_BLOCK];
+        for (long fingerprint : fingerprints) {
+            long hash = mix(fingerprint);
+            int base = block(hash) * WORDS_PER_BLOCK;
+            long probes = mix(hash);
+            for (int i = 0; i < PROBES; i++) {
+                int bit = (int) (probes >>> (i * 9)) & 511;
+                words[base + (bit >>> 6)] |= 1L << bit;
+            }
+        }
+    }
+
+    public boolean mightContain(long fingerprint) {
+        long hash = mix(fingerprint);
+        int base = block(hash) * WORDS_PER_BLOCK;
+        long probes = mix(hash);
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (int) (probes >>> (i * 9)) & 511;
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Never below the true intersection size, since a Bloom filter has no false negatives.
+    public int countContained(long[] fingerprints) {
+        int hits = 0;
+        for (long fingerprint : fingerprints) {
+            if (mightContain(fingerprint)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    public long sizeInBytes() {
+        return 24L + IndexFootprint.longArray(words.length);
+    }
+
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32);
+    }
+
+    private static long mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 32);
+    }
+}
@@ -0,0 +1,57 @@
+package util;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Shallow heap estimates for a 64-bit JVM with compressed oops; close enough to size budgets,
+// not a replacement for a heap dump.
+public class IndexFootprint implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final long ARRAY_HEADER = 16;
+    static final long MAP_ENTRY = 48;
+    static final long STRING_HEADER = 40;
+    static final long BUCKET_OVERHEAD = 200;
+    static final long SET_ENTRY = 40;
+    static final long COMPACT_SET_HEADER = 32;
+    static final long COMPACT_SET_ENTRY = 8;
+
+    long signatures;
+    long postings;
+    long samples;
+    long fingerprints;
+    long sketches;
+    long documentFrequency;
+
+    public long total() {
+        return signatures + postings + samples + fingerprints + sketches + documentFrequency;
+    }
+
+    public Map<String, Long> toMap() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("signatureBytes", signatures);
+        map.put("postingBytes", postings);
+        map.put("samplePostingBytes", samples);
+        map.put("fingerprintBytes", fingerprints);
+        map.put("sketchBytes", sketches);
+        map.put("documentFrequencyBytes", documentFrequency);
+        map.put("indexBytes", total());
+        return map;
+    }
+
+    static long intArray(int length) {
+        return ARRAY_HEADER + 4L * length;
+    }
+
+    static long longArray(int length) {
+        return ARRAY_HEADER + 8L * length;
+    }
+
+    static long string(String value) {
+        if (value == null) {
+            return 0;
+        }
+        boolean latin1 = value.chars().allMatch(c -> c < 256);
+        return STRING_HEADER + (latin1 ? value.length() : 2L * value.length());
+    }
+}
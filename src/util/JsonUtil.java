@@ -14,35 +14,80 @@ public final class JsonUtil {
     private JsonUtil() {}
 
     public static Request parseRequest(String json) throws IOException {
-        Object parsed = new Parser(json).parseValue();
-        if (!(parsed instanceof Map)) {
-            throw new IOException("JSON is not an object");
-        }
-        @SuppressWarnings("unchecked")
-        Map<String, Object> obj = (Map<String, Object>) parsed;
+        Map<String, Object> obj = parseObject(json);
         Request request = new Request();
         request.setRequestId(stringValue(obj.get("requestId")));
         request.setUserId(stringValue(obj.get("userId")));
         request.setFileName(stringValue(obj.get("fileName")));
         request.setFullText(stringValue(obj.get("fullText")));
+        request.setAction(stringValue(obj.get("action")));
+        request.setJobId(stringValue(obj.get("jobId")));
         return request;
     }
 
+    public static Map<String, Object> parseObject(String json) throws IOException {
+        Object parsed = new Parser(json).parseValue();
+        if (!(parsed instanceof Map)) {
+            throw new IOException("JSON is not an object");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> obj = (Map<String, Object>) parsed;
+        return obj;
+    }
+
+    public static Response parseResponse(String json) throws IOException {
+        Map<String, Object> obj = parseObject(json);
+        Response response = new Response();
+        response.setRequestId(stringValue(obj.get("requestId")));
+        response.setJobId(stringValue(obj.get("jobId")));
+        response.setStatus(stringValue(obj.get("status")));
+        response.setErrorMessage(stringValue(obj.get("errorMessage")));
+        return response;
+    }
+
+    public static String toJson(Request request) {
+        Map<String, Object> obj = new LinkedHashMap<>();
+        obj.put("requestId", request.getRequestId());
+        obj.put("userId", request.getUserId());
+        obj.put("fileName", request.getFileName());
+        if (request.getAction() != null) {
+            obj.put("action", request.getAction());
+        }
+        if (request.getJobId() != null) {
+            obj.put("jobId", request.getJobId());
+        }
+        obj.put("fullText", request.getFullText());
+        return Writer.write(obj);
+    }
+
     public static String toJson(Response response) {
         Map<String, Object> obj = new LinkedHashMap<>();
         if (response.getRequestId() != null) {
             obj.put("requestId", response.getRequestId());
         }
+        if (response.getJobId() != null) {
+            obj.put("jobId", response.getJobId());
+        }
         obj.put("status", response.getStatus());
         if (response.getErrorMessage() != null) {
             obj.put("errorMessage", response.getErrorMessage());
         }
+        if (response.getProgress() != null) {
+            obj.put("progress", response.getProgress());
+        }
+        if (response.isPartial()) {
+            obj.put("partial", true);
+        }
+        if (response.getStats() != null) {
+            obj.put("stats", new LinkedHashMap<String, Object>(response.getStats()));
+        }
         if (response.getMatches() != null) {
             List<Map<String, Object>> matches = new ArrayList<>();
             for (MatchResult match : response.getMatches()) {
                 Map<String, Object> matchObj = new LinkedHashMap<>();
                 matchObj.put("fileName", match.getFileName());
                 matchObj.put("similarity", match.getSimilarity());
+                matchObj.put("containment", match.getContainment());
                 matchObj.put("description", match.getDescription());
                 matches.add(matchObj);
             }
@@ -2,61 +2,633 @@ package util;
 
 import java.io.Serializable;
 import java.util.*;
-import java.util.concurrent.Delayed;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 public class LSHIndex implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final double SAMPLE_SLACK = 0.75;
+    private static final List<String> BUDGET_RESPONSES = List.of("COMPACT_POSTINGS", "REFUSE");
     private final int bands;
     private final int rows;
     private final MinHash minHash;
-    private final Map<String, int[]> signatureStore = new HashMap<>();
-    private final Map<String, String> contentStore = new HashMap<>();
+    private final double clusterSimilarity;
+    private final Map<String, int[]> signatureStore = new ConcurrentHashMap<>();
+    private final Map<String, long[]> fingerprintStore = new ConcurrentHashMap<>();
+    private final Map<String, BlockedBloomFilter> sketchStore = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> clusterMembers = new ConcurrentHashMap<>();
     private final List<Map<String, Set<String>>> buckets = new ArrayList<>();
+    private final Map<Long, Set<String>> samplePostings = new ConcurrentHashMap<>();
+    private final LongIntMap documentFrequency = new LongIntMap(1 << 16);
+    private int frequencyDocuments;
+    private volatile boolean frequenciesReady;
+    private double stopFraction = Double.POSITIVE_INFINITY;
+    private int stopMinDocuments;
+    private boolean weighted;
+    private double minContainment = Double.POSITIVE_INFINITY;
+    private int sampleRate = 16;
+    private final IndexFootprint footprint = new IndexFootprint();
+    private long memoryBudget = Long.MAX_VALUE;
+    private List<String> budgetResponses = Collections.emptyList();
+    private boolean postingsCompacted;
+    private int refusedDocuments;
 
     public LSHIndex(int bands, int rows, MinHash minHash) {
+        this(bands, rows, minHash, Double.POSITIVE_INFINITY);
+    }
+
+    public LSHIndex(int bands, int rows, MinHash minHash, double clusterSimilarity) {
         this.bands = bands;
         this.rows = rows;
         this.minHash = minHash;
+        this.clusterSimilarity = clusterSimilarity;
         for (int i = 0; i < bands; i++) {
-            buckets.add(new HashMap<>());
+            buckets.add(new ConcurrentHashMap<>());
         }
     }
 
-    public void add(String fileName, String normalizedContent, Set<String> shingles) {
-        int[] signature = minHash.signature(shingles);
-        signatureStore.put(fileName, signature);
-        contentStore.put(fileName, normalizedContent);
-        for (int band = 0; band < bands; band++) {
-            int start = band * rows;
-            int end = Math.min(signature.length, start + rows);
-            int[] slice = Arrays.copyOfRange(signature, start, end);
-            String key = Arrays.toString(slice);
-            buckets.get(band).computeIfAbsent(key, k -> new HashSet<>()).add(fileName);
+    public void setStopShingles(double maxDocumentFraction, int minDocuments) {
+        this.stopFraction = maxDocumentFraction;
+        this.stopMinDocuments = minDocuments;
+    }
+
+    public void setWeighted(boolean weighted) {
+        this.weighted = weighted;
+    }
+
+    // Banding only finds documents of similar size. For a short query copied from a long document
+    // a 1-in-sampleRate sample of each representative's non-stop fingerprints is indexed, and a
+    // document is a candidate when enough of the query's sampled fingerprints point at it.
+    public void setContainment(double minContainment, int sampleRate) {
+        this.minContainment = minContainment;
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    // Responses are tried in order whenever an add would exceed the budget:
+    // COMPACT_POSTINGS and REFUSE (the document is not indexed).
+    public synchronized void setMemoryBudget(long bytes, List<String> responses) {
+        for (String response : responses) {
+            if (!BUDGET_RESPONSES.contains(response)) {
+                throw new IllegalArgumentException("Unknown memory budget response: " + response
+                        + " (expected one of " + BUDGET_RESPONSES + ")");
+            }
+        }
+        this.memoryBudget = bytes;
+        this.budgetResponses = new ArrayList<>(responses);
+    }
+
+    public boolean usesDocumentFrequency() {
+        return weighted || stopFraction < 1.0;
+    }
+
+    public synchronized void countDocument(long[] fingerprints) {
+        if (frequenciesReady) {
+            throw new IllegalStateException("Document frequencies are already finalised");
         }
+        for (long fingerprint : fingerprints) {
+            documentFrequency.increment(fingerprint);
+        }
+        frequencyDocuments++;
+    }
+
+    public synchronized void finishCounting() {
+        frequenciesReady = true;
+        footprint.documentFrequency = documentFrequency.sizeInBytes();
+    }
+
+    public synchronized int stopShingleCount() {
+        return documentFrequency.countAbove(stopCutoff());
     }
 
-    public List<SimilarityResult> query(Set<String> queryShingles, double threshold) {
-        int[] querySig = minHash.signature(queryShingles);
+    // Hashing is done here so callers can prepare entries in parallel; add() then decides cluster
+    // membership, which depends on the order documents are added in.
+    public IndexEntry entry(String fileName, long[] fingerprints) {
+        return new IndexEntry(fileName, fingerprints, signature(fingerprints), new BlockedBloomFilter(fingerprints),
+                sampled(fingerprints));
+    }
+
+    public boolean add(IndexEntry entry) {
+        String fileName = entry.fileName;
+        long[] fingerprints = entry.fingerprints;
+        int[] signature = entry.signature;
+        BlockedBloomFilter sketch = entry.sketch;
+        long[] sampled = entry.sampled;
+        long storeCost = 3 * IndexFootprint.MAP_ENTRY + IndexFootprint.intArray(signature.length)
+                + IndexFootprint.longArray(fingerprints.length) + sketch.sizeInBytes();
+        synchronized (this) {
+            // Only representatives get band and sample postings; a member is one list entry.
+            String representative = findRepresentative(signature);
+            long postingCost = representative != null
+                    ? IndexFootprint.COMPACT_SET_ENTRY
+                    : IndexFootprint.MAP_ENTRY + bands * (IndexFootprint.SET_ENTRY + IndexFootprint.BUCKET_OVERHEAD)
+                            + sampled.length * (IndexFootprint.MAP_ENTRY + IndexFootprint.SET_ENTRY);
+            if (!reserve(storeCost + postingCost)) {
+                refusedDocuments++;
+                return false;
+            }
+            signatureStore.put(fileName, signature);
+            fingerprintStore.put(fileName, fingerprints);
+            sketchStore.put(fileName, sketch);
+            footprint.signatures += IndexFootprint.MAP_ENTRY + IndexFootprint.intArray(signature.length);
+            footprint.fingerprints += IndexFootprint.MAP_ENTRY + IndexFootprint.longArray(fingerprints.length);
+            footprint.sketches += IndexFootprint.MAP_ENTRY + sketch.sizeInBytes();
+            if (representative != null) {
+                clusterMembers.get(representative).add(fileName);
+                footprint.postings += IndexFootprint.COMPACT_SET_ENTRY;
+                return true;
+            }
+            clusterMembers.put(fileName, new CopyOnWriteArrayList<>());
+            footprint.postings += IndexFootprint.MAP_ENTRY;
+            for (int band = 0; band < bands; band++) {
+                int start = band * rows;
+                int end = Math.min(signature.length, start + rows);
+                int[] slice = Arrays.copyOfRange(signature, start, end);
+                String key = Arrays.toString(slice);
+                Map<String, Set<String>> bandBuckets = buckets.get(band);
+                if (!bandBuckets.containsKey(key)) {
+                    footprint.postings += IndexFootprint.string(key) + IndexFootprint.MAP_ENTRY
+                            + (postingsCompacted ? IndexFootprint.COMPACT_SET_HEADER : IndexFootprint.BUCKET_OVERHEAD);
+                }
+                if (postingsCompacted) {
+                    bandBuckets.merge(key, Set.of(fileName), (existing, added) -> withMember(existing, fileName));
+                    footprint.postings += 2 * IndexFootprint.COMPACT_SET_ENTRY;
+                } else {
+                    bandBuckets.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(fileName);
+                    footprint.postings += IndexFootprint.SET_ENTRY;
+                }
+            }
+            for (long fingerprint : sampled) {
+                if (!samplePostings.containsKey(fingerprint)) {
+                    footprint.samples += IndexFootprint.MAP_ENTRY
+                            + (postingsCompacted ? IndexFootprint.COMPACT_SET_HEADER : IndexFootprint.BUCKET_OVERHEAD);
+                }
+                if (postingsCompacted) {
+                    samplePostings.merge(fingerprint, Set.of(fileName), (existing, added) -> withMember(existing, fileName));
+                    footprint.samples += 2 * IndexFootprint.COMPACT_SET_ENTRY;
+                } else {
+                    samplePostings.computeIfAbsent(fingerprint, k -> ConcurrentHashMap.newKeySet()).add(fileName);
+                    footprint.samples += IndexFootprint.SET_ENTRY;
+                }
+            }
+            return true;
+        }
+    }
+
+    public QueryState prepare(long[] queryFingerprints) {
+        boolean filtered = frequenciesReady && frequencyDocuments > 0;
+        long[] kept = filtered ? keptFingerprints(queryFingerprints) : queryFingerprints;
+        if (kept.length == 0) {
+            // Same fallback as signature(): boilerplate-only text is hashed unfiltered.
+            filtered = false;
+            kept = queryFingerprints;
+        }
+        MinHash.State state = minHash.state(kept, filtered && weighted ? this::idf : null);
+        return new QueryState(queryFingerprints, state, filtered, null, null);
+    }
+
+    // Folds the difference between the previous and the revised fingerprints into the previous
+    // signature state, so an edit costs time in proportion to the shingles it added or removed.
+    public QueryState revise(QueryState previous, long[] queryFingerprints) {
+        boolean filtered = frequenciesReady && frequencyDocuments > 0;
+        if (previous.filtered != filtered) {
+            return prepare(queryFingerprints);
+        }
+        long[] added = difference(queryFingerprints, previous.fingerprints);
+        long[] removed = difference(previous.fingerprints, queryFingerprints);
+        MinHash.State state;
+        if (filtered) {
+            long[] keptRemoved = keptFingerprints(removed);
+            long[] current = keptRemoved.length == 0 ? new long[0] : keptFingerprints(queryFingerprints);
+            if (keptRemoved.length > 0 && current.length == 0) {
+                return prepare(queryFingerprints);
+            }
+            state = minHash.update(previous.state, keptFingerprints(added), keptRemoved, current,
+                    weighted ? this::idf : null);
+        } else {
+            state = minHash.update(previous.state, added, removed, queryFingerprints, null);
+        }
+        return new QueryState(queryFingerprints, state, filtered, added, removed);
+    }
+
+    // Documents with a known intersection from the previous revision are re-scored from the delta
+    // alone and skip verification, including ones the revised signature no longer collides with.
+    public List<SimilarityResult> query(QueryState query, Map<String, Integer> knownIntersections, double threshold) {
+        int[] querySig = query.state.signature();
         Set<String> candidates = collectCandidates(querySig);
+        candidates.addAll(containmentCandidates(query.fingerprints));
+        Map<String, Integer> known = query.added == null ? Collections.emptyMap() : knownIntersections;
+        Set<String> checked = new HashSet<>();
         List<SimilarityResult> results = new ArrayList<>();
         for (String candidate : candidates) {
-        	try {
-    			Thread.sleep(500);
-    		} catch (InterruptedException e) {
-    			e.printStackTrace();
-    		}
-
-            int[] candidateSig = signatureStore.get(candidate);
-            if (candidateSig == null) continue;
-            double similarity = minHash.similarity(querySig, candidateSig);
-            if (similarity >= threshold) {
-                results.add(new SimilarityResult(candidate, similarity, contentStore.get(candidate)));
+            checked.add(candidate);
+            if (!check(querySig, query, candidate, known, threshold, results)) {
+                continue;
+            }
+            // Members are only worth verifying once their representative matched.
+            for (String member : clusterMembers.getOrDefault(candidate, Collections.emptyList())) {
+                checked.add(member);
+                check(querySig, query, member, known, threshold, results);
+            }
+        }
+        for (String previous : known.keySet()) {
+            if (!checked.contains(previous)) {
+                rescore(query, previous, known.get(previous), threshold, results);
             }
         }
         results.sort((a, b) -> Double.compare(b.similarity, a.similarity));
         return results;
     }
 
+    // Each candidate pair is handled only by the first band it collides in, so bands can be
+    // scanned in parallel without a shared set of already-seen pairs.
+    public long selfJoin(double threshold, PairSink sink) {
+        AtomicLong verified = new AtomicLong();
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            for (Set<String> bucket : buckets.get(band).values()) {
+                if (bucket.size() < 2) {
+                    continue;
+                }
+                String[] docs = bucket.toArray(new String[0]);
+                for (int i = 0; i < docs.length; i++) {
+                    for (int j = i + 1; j < docs.length; j++) {
+                        if (firstSharedBand(docs[i], docs[j]) == band) {
+                            verified.addAndGet(joinClusters(docs[i], docs[j], threshold, sink));
+                        }
+                    }
+                }
+            }
+        });
+        // Members are not in the band buckets, so each one also probes them with its own signature
+        // to reach clusters whose representative never collides with its own representative.
+        Set<String> probed = ConcurrentHashMap.newKeySet();
+        clusterMembers.entrySet().parallelStream().forEach(cluster -> {
+            for (String member : cluster.getValue()) {
+                for (String other : collectCandidates(signatureStore.get(member))) {
+                    if (other.equals(cluster.getKey()) || firstSharedBand(cluster.getKey(), other) >= 0) {
+                        continue;
+                    }
+                    for (String doc : cluster(other)) {
+                        String key = member.compareTo(doc) < 0 ? member + "\u0000" + doc : doc + "\u0000" + member;
+                        if (probed.add(key)) {
+                            joinPair(member, doc, threshold, sink);
+                            verified.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+        clusterMembers.keySet().parallelStream()
+                .forEach(representative -> verified.addAndGet(joinWithinCluster(representative, threshold, sink)));
+        return verified.get();
+    }
+
+    public synchronized Map<String, Long> memoryStats() {
+        Map<String, Long> stats = footprint.toMap();
+        stats.put("memoryBudgetBytes", memoryBudget == Long.MAX_VALUE ? -1 : memoryBudget);
+        stats.put("documents", (long) signatureStore.size());
+        stats.put("refusedDocuments", (long) refusedDocuments);
+        stats.put("postingsCompacted", postingsCompacted ? 1L : 0L);
+        return stats;
+    }
+
+    public synchronized int refusedDocuments() {
+        return refusedDocuments;
+    }
+
+    public int size() {
+        return signatureStore.size();
+    }
+
+    public int clusterCount() {
+        return clusterMembers.size();
+    }
+
+    private int[] signature(long[] fingerprints) {
+        if (!frequenciesReady || frequencyDocuments == 0) {
+            return minHash.signature(fingerprints);
+        }
+        int cutoff = stopCutoff();
+        long[] kept = new long[fingerprints.length];
+        double[] weights = new double[fingerprints.length];
+        int size = 0;
+        for (long fingerprint : fingerprints) {
+            int df = documentFrequency.get(fingerprint);
+            if (df > cutoff) {
+                continue;
+            }
+            kept[size] = fingerprint;
+            weights[size] = Math.log((frequencyDocuments + 1.0) / (df + 1.0)) + 1.0;
+            size++;
+        }
+        if (size == 0) {
+            // A document made only of boilerplate still needs a signature of its own.
+            return minHash.signature(fingerprints);
+        }
+        kept = Arrays.copyOf(kept, size);
+        return weighted ? minHash.weightedSignature(kept, weights) : minHash.signature(kept);
+    }
+
+    private long[] sampled(long[] fingerprints) {
+        if (minContainment > 1.0) {
+            return new long[0];
+        }
+        int cutoff = frequenciesReady ? stopCutoff() : Integer.MAX_VALUE;
+        long[] sampled = new long[fingerprints.length / sampleRate + 1];
+        int size = 0;
+        for (long fingerprint : fingerprints) {
+            if (((fingerprint * 0x9E3779B97F4A7C15L) >>> 33) % sampleRate != 0) {
+                continue;
+            }
+            if (cutoff != Integer.MAX_VALUE && documentFrequency.get(fingerprint) > cutoff) {
+                continue;
+            }
+            if (size == sampled.length) {
+                sampled = Arrays.copyOf(sampled, size * 2);
+            }
+            sampled[size++] = fingerprint;
+        }
+        return Arrays.copyOf(sampled, size);
+    }
+
+    // Sampled hits are a noisy estimate of containment, so the bar is lowered by SAMPLE_SLACK and
+    // the exact check in verify() decides.
+    private Set<String> containmentCandidates(long[] queryFingerprints) {
+        long[] sampled = sampled(queryFingerprints);
+        if (sampled.length == 0) {
+            return Collections.emptySet();
+        }
+        Map<String, Integer> hits = new HashMap<>();
+        for (long fingerprint : sampled) {
+            Set<String> docs = samplePostings.get(fingerprint);
+            if (docs != null) {
+                for (String doc : docs) {
+                    hits.merge(doc, 1, Integer::sum);
+                }
+            }
+        }
+        int needed = Math.max(1, (int) Math.ceil(minContainment * SAMPLE_SLACK * sampled.length));
+        Set<String> candidates = new HashSet<>();
+        for (Map.Entry<String, Integer> hit : hits.entrySet()) {
+            if (hit.getValue() >= needed) {
+                candidates.add(hit.getKey());
+            }
+        }
+        return candidates;
+    }
+
+    private long[] keptFingerprints(long[] fingerprints) {
+        int cutoff = stopCutoff();
+        long[] kept = new long[fingerprints.length];
+        int size = 0;
+        for (long fingerprint : fingerprints) {
+            if (documentFrequency.get(fingerprint) <= cutoff) {
+                kept[size++] = fingerprint;
+            }
+        }
+        return Arrays.copyOf(kept, size);
+    }
+
+    private double idf(long fingerprint) {
+        return Math.log((frequencyDocuments + 1.0) / (documentFrequency.get(fingerprint) + 1.0)) + 1.0;
+    }
+
+    private static long[] difference(long[] sorted, long[] minus) {
+        long[] output = new long[sorted.length];
+        int size = 0;
+        int j = 0;
+        for (long value : sorted) {
+            while (j < minus.length && minus[j] < value) {
+                j++;
+            }
+            if (j >= minus.length || minus[j] != value) {
+                output[size++] = value;
+            }
+        }
+        return Arrays.copyOf(output, size);
+    }
+
+    private int stopCutoff() {
+        if (stopFraction >= 1.0) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(stopMinDocuments, (int) Math.floor(stopFraction * frequencyDocuments));
+    }
+
+    private boolean verify(int[] querySig, long[] queryFingerprints, String candidate, double threshold,
+                           List<SimilarityResult> results) {
+        int hits = sketchHits(queryFingerprints, candidate);
+        if (hits < 0) {
+            return false;
+        }
+        boolean jaccardPossible = jaccardBound(hits, queryFingerprints.length, candidate) >= threshold;
+        boolean containmentPossible = queryFingerprints.length > 0
+                && (double) hits / queryFingerprints.length >= minContainment;
+        if (!jaccardPossible && !containmentPossible) {
+            return false;
+        }
+    	try {
+			Thread.sleep(500);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+        int[] candidateSig = signatureStore.get(candidate);
+        if (candidateSig == null) return false;
+        long[] candidateFingerprints = fingerprintStore.get(candidate);
+        double similarity = minHash.similarity(querySig, candidateSig);
+        int intersection = -1;
+        if (containmentPossible) {
+            intersection = ShingleGenerator.intersectionSize(queryFingerprints, candidateFingerprints);
+        }
+        if (similarity < threshold
+                && (intersection < 0 || (double) intersection / queryFingerprints.length < minContainment)) {
+            return false;
+        }
+        results.add(new SimilarityResult(candidate, similarity, candidateFingerprints, intersection));
+        return true;
+    }
+
+    private boolean check(int[] querySig, QueryState query, String candidate, Map<String, Integer> known,
+                          double threshold, List<SimilarityResult> results) {
+        Integer intersection = known.get(candidate);
+        if (intersection != null) {
+            return rescore(query, candidate, intersection, threshold, results);
+        }
+        return verify(querySig, query.fingerprints, candidate, threshold, results);
+    }
+
+    private boolean rescore(QueryState query, String candidate, int previousIntersection, double threshold,
+                            List<SimilarityResult> results) {
+        long[] candidateFingerprints = fingerprintStore.get(candidate);
+        if (candidateFingerprints == null) {
+            return false;
+        }
+        int intersection = previousIntersection
+                + ShingleGenerator.countContained(query.added, candidateFingerprints)
+                - ShingleGenerator.countContained(query.removed, candidateFingerprints);
+        int union = query.fingerprints.length + candidateFingerprints.length - intersection;
+        double similarity = union == 0 ? 1.0 : (double) intersection / union;
+        double containment = query.fingerprints.length == 0 ? 0 : (double) intersection / query.fingerprints.length;
+        if (similarity < threshold && containment < minContainment) {
+            return false;
+        }
+        results.add(new SimilarityResult(candidate, similarity, candidateFingerprints, intersection));
+        return true;
+    }
+
+    // Bloom hits over-count the true intersection, so these bounds never reject a real match.
+    private boolean passesSketch(long[] queryFingerprints, String candidate, double threshold) {
+        int hits = sketchHits(queryFingerprints, candidate);
+        return hits >= 0 && jaccardBound(hits, queryFingerprints.length, candidate) >= threshold;
+    }
+
+    private int sketchHits(long[] queryFingerprints, String candidate) {
+        BlockedBloomFilter sketch = sketchStore.get(candidate);
+        if (sketch == null || !fingerprintStore.containsKey(candidate)) {
+            return -1;
+        }
+        return sketch.countContained(queryFingerprints);
+    }
+
+    private double jaccardBound(int hits, int querySize, String candidate) {
+        int union = querySize + fingerprintStore.get(candidate).length - hits;
+        return union > 0 ? (double) hits / union : 0;
+    }
+
+    private boolean reserve(long cost) {
+        for (String response : budgetResponses) {
+            if (footprint.total() + cost <= memoryBudget) {
+                return true;
+            }
+            switch (response) {
+                case "COMPACT_POSTINGS":
+                    if (!postingsCompacted) {
+                        compactPostings();
+                    }
+                    break;
+                case "REFUSE":
+                    return false;
+                default:
+                    throw new IllegalArgumentException("Unknown memory budget response: " + response);
+            }
+        }
+        return true;
+    }
+
+    private void compactPostings() {
+        long postings = 0;
+        for (Map<String, Set<String>> bandBuckets : buckets) {
+            bandBuckets.replaceAll((key, docs) -> Set.copyOf(docs));
+            for (Map.Entry<String, Set<String>> bucket : bandBuckets.entrySet()) {
+                postings += IndexFootprint.string(bucket.getKey()) + IndexFootprint.MAP_ENTRY
+                        + IndexFootprint.COMPACT_SET_HEADER + 2 * IndexFootprint.COMPACT_SET_ENTRY * bucket.getValue().size();
+            }
+        }
+        long samples = 0;
+        samplePostings.replaceAll((fingerprint, docs) -> Set.copyOf(docs));
+        for (Set<String> docs : samplePostings.values()) {
+            samples += IndexFootprint.MAP_ENTRY + IndexFootprint.COMPACT_SET_HEADER
+                    + 2 * IndexFootprint.COMPACT_SET_ENTRY * docs.size();
+        }
+        postings += clusterMembers.size() * IndexFootprint.MAP_ENTRY + (signatureStore.size() - clusterMembers.size())
+                * IndexFootprint.COMPACT_SET_ENTRY;
+        System.out.println("Index memory budget reached: compacted postings from "
+                + (footprint.postings + footprint.samples) + " to " + (postings + samples) + " bytes");
+        footprint.postings = postings;
+        footprint.samples = samples;
+        postingsCompacted = true;
+    }
+
+    private static Set<String> withMember(Set<String> docs, String fileName) {
+        if (docs.contains(fileName)) {
+            return docs;
+        }
+        String[] members = docs.toArray(new String[docs.size() + 1]);
+        members[docs.size()] = fileName;
+        return Set.of(members);
+    }
+
+    private int firstSharedBand(String first, String second) {
+        int[] a = signatureStore.get(first);
+        int[] b = signatureStore.get(second);
+        for (int band = 0; band < bands; band++) {
+            int start = band * rows;
+            int end = Math.min(a.length, start + rows);
+            if (Arrays.equals(a, start, end, b, start, end)) {
+                return band;
+            }
+        }
+        return -1;
+    }
+
+    // Every cross pair is checked: a member can be above the threshold with a document its
+    // representative is not, so the representative pair is not a gate for the rest.
+    private long joinClusters(String first, String second, double threshold, PairSink sink) {
+        long verified = 0;
+        for (String a : cluster(first)) {
+            for (String b : cluster(second)) {
+                joinPair(a, b, threshold, sink);
+                verified++;
+            }
+        }
+        return verified;
+    }
+
+    private long joinWithinCluster(String representative, double threshold, PairSink sink) {
+        List<String> cluster = cluster(representative);
+        long verified = 0;
+        for (int i = 0; i < cluster.size(); i++) {
+            for (int j = i + 1; j < cluster.size(); j++) {
+                joinPair(cluster.get(i), cluster.get(j), threshold, sink);
+                verified++;
+            }
+        }
+        return verified;
+    }
+
+    private List<String> cluster(String representative) {
+        List<String> cluster = new ArrayList<>();
+        cluster.add(representative);
+        cluster.addAll(clusterMembers.getOrDefault(representative, Collections.emptyList()));
+        return cluster;
+    }
+
+    private boolean joinPair(String first, String second, double threshold, PairSink sink) {
+        long[] a = fingerprintStore.get(first);
+        long[] b = fingerprintStore.get(second);
+        if (a == null || b == null) {
+            return false;
+        }
+        boolean firstSmaller = a.length <= b.length;
+        if (!passesSketch(firstSmaller ? a : b, firstSmaller ? second : first, threshold)) {
+            return false;
+        }
+        double jaccard = ShingleGenerator.jaccard(a, b);
+        if (jaccard < threshold) {
+            return false;
+        }
+        sink.accept(first, second, jaccard);
+        return true;
+    }
+
+    private String findRepresentative(int[] signature) {
+        if (clusterSimilarity > 1.0) {
+            return null;
+        }
+        String best = null;
+        double bestSimilarity = clusterSimilarity;
+        for (String candidate : collectCandidates(signature)) {
+            double similarity = minHash.similarity(signature, signatureStore.get(candidate));
+            if (similarity >= bestSimilarity) {
+                best = candidate;
+                bestSimilarity = similarity;
+            }
+        }
+        return best;
+    }
+
     private Set<String> collectCandidates(int[] querySig) {
         Set<String> candidates = new HashSet<>();
         for (int band = 0; band < bands; band++) {
@@ -72,17 +644,73 @@ public class LSHIndex implements Serializable {
         return candidates;
     }
 
+    public interface PairSink {
+        void accept(String first, String second, double similarity);
+    }
+
+    public static class IndexEntry {
+        private final String fileName;
+        private final long[] fingerprints;
+        private final int[] signature;
+        private final BlockedBloomFilter sketch;
+        private final long[] sampled;
+
+        IndexEntry(String fileName, long[] fingerprints, int[] signature, BlockedBloomFilter sketch, long[] sampled) {
+            this.fileName = fileName;
+            this.fingerprints = fingerprints;
+            this.signature = signature;
+            this.sketch = sketch;
+            this.sampled = sampled;
+        }
+
+        public String fileName() {
+            return fileName;
+        }
+    }
+
+    public static class QueryState {
+        private final long[] fingerprints;
+        private final MinHash.State state;
+        private final boolean filtered;
+        private final long[] added;
+        private final long[] removed;
+
+        QueryState(long[] fingerprints, MinHash.State state, boolean filtered, long[] added, long[] removed) {
+            this.fingerprints = fingerprints;
+            this.state = state;
+            this.filtered = filtered;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        // The delta is only needed for the query that produced it; revise() works from the
+        // fingerprints and signature state alone.
+        public QueryState withoutDelta() {
+            return added == null ? this : new QueryState(fingerprints, state, filtered, null, null);
+        }
+
+        public long sizeInBytes() {
+            return IndexFootprint.longArray(fingerprints.length) + state.sizeInBytes();
+        }
+    }
+
     public static class SimilarityResult implements Serializable {
         private static final long serialVersionUID = 1L;
         public final String fileName;
         public final double similarity;
-        public final String content;
+        public final long[] fingerprints;
+        // Size of the query and document intersection when already known, otherwise -1.
+        public final int intersection;
 
-        public SimilarityResult(String fileName, double similarity, String content) {
+        public SimilarityResult(String fileName, double similarity, long[] fingerprints) {
+            this(fileName, similarity, fingerprints, -1);
+        }
+
+        public SimilarityResult(String fileName, double similarity, long[] fingerprints, int intersection) {
             this.fileName = fileName;
             this.similarity = similarity;
-            this.content = content;
+            this.fingerprints = fingerprints;
+            this.intersection = intersection;
         }
     }
 }
-
@@ -0,0 +1,126 @@
+package util;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+// Log-linear histogram with three significant digits, laid out like HdrHistogram so that its
+// percentile distribution output can be loaded by the usual HdrHistogram plotting tools.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int TICKS_PER_HALF_DISTANCE = 5;
+    private final long maxTrackable;
+    private final long[] counts;
+    private long totalCount;
+    private long maxValue;
+    private double sum;
+    private double sumOfSquares;
+
+    public LatencyHistogram(long maxTrackable) {
+        this.maxTrackable = maxTrackable;
+        this.counts = new long[indexOf(maxTrackable) + 1];
+    }
+
+    public synchronized void recordValue(long value) {
+        long clamped = Math.max(0, Math.min(value, maxTrackable));
+        counts[indexOf(clamped)]++;
+        totalCount++;
+        maxValue = Math.max(maxValue, clamped);
+        sum += clamped;
+        sumOfSquares += (double) clamped * clamped;
+    }
+
+    // Back-fills the samples a stalled closed-loop client never got to send.
+    public synchronized void recordValueWithExpectedInterval(long value, long expectedInterval) {
+        recordValue(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            recordValue(missing);
+        }
+    }
+
+    public synchronized long getTotalCount() {
+        return totalCount;
+    }
+
+    public synchronized long getMaxValue() {
+        return maxValue;
+    }
+
+    public synchronized double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    public synchronized void outputPercentileDistribution(PrintStream out, double unitScaling) {
+        out.println(String.format(Locale.ROOT, "%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        if (totalCount > 0) {
+            double percentile = 0;
+            while (true) {
+                long value = getValueAtPercentile(percentile);
+                long countAtValue = countAtOrBelow(value);
+                double reached = 100.0 * countAtValue / totalCount;
+                if (reached >= 100.0) {
+                    out.println(String.format(Locale.ROOT, "%12.3f %1.12f %10d", value / unitScaling, 1.0, totalCount));
+                    break;
+                }
+                out.println(String.format(Locale.ROOT, "%12.3f %1.12f %10d %14.2f",
+                        value / unitScaling, reached / 100.0, countAtValue, 1.0 / (1.0 - reached / 100.0)));
+                int halvings = (int) (Math.log(100.0 / (100.0 - reached)) / Math.log(2));
+                double step = 100.0 / (TICKS_PER_HALF_DISTANCE * Math.pow(2, halvings + 1));
+                percentile = Math.max(percentile + step, reached + step / 2);
+            }
+        }
+        double mean = getMean() / unitScaling;
+        double variance = totalCount == 0 ? 0 : sumOfSquares / totalCount - (sum / totalCount) * (sum / totalCount);
+        double stdDev = Math.sqrt(Math.max(0, variance)) / unitScaling;
+        out.println(String.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]", mean, stdDev));
+        out.println(String.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]", maxValue / unitScaling, totalCount));
+        out.println(String.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]",
+                (counts.length - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1, SUB_BUCKETS));
+    }
+
+    private long countAtOrBelow(long value) {
+        long seen = 0;
+        int last = indexOf(value);
+        for (int i = 0; i <= last; i++) {
+            seen += counts[i];
+        }
+        return seen;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        long sub = value >>> shift;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (sub - HALF_SUB_BUCKETS);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long sub = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return (sub << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,100 @@
+package util;
+
+import java.io.Serializable;
+
+public class LongIntMap implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final long EMPTY = 0L;
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    public int get(long key) {
+        if (key == EMPTY) {
+            return hasZeroKey ? zeroValue : 0;
+        }
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            if (keys[slot] == EMPTY) {
+                return 0;
+            }
+        }
+    }
+
+    public void increment(long key) {
+        if (key == EMPTY) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue++;
+            return;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot]++;
+        if (size * 4 >= keys.length * 3) {
+            grow();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int countAbove(int threshold) {
+        int count = hasZeroKey && zeroValue > threshold ? 1 : 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && values[i] > threshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long sizeInBytes() {
+        return 48L + IndexFootprint.longArray(keys.length) + IndexFootprint.intArray(values.length);
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) {
+                continue;
+            }
+            int slot = mix(oldKeys[i]) & mask;
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
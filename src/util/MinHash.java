@@ -6,6 +6,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.function.LongToDoubleFunction;
 
 public class MinHash implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -24,10 +25,14 @@ public class MinHash implements Serializable {
     }
 
     public int[] signature(Set<String> shingles) {
+        return signature(ShingleGenerator.fingerprints(shingles));
+    }
+
+    public int[] signature(long[] fingerprints) {
         int[] sig = new int[numHashFunctions];
         Arrays.fill(sig, Integer.MAX_VALUE);
-        for (String shingle : shingles) {
-            int hash = shingle.hashCode();
+        for (long fingerprint : fingerprints) {
+            int hash = fold(fingerprint);
             for (int i = 0; i < numHashFunctions; i++) {
                 int value = hashFunctions.get(i).hash(hash);
                 if (value < sig[i]) {
@@ -38,6 +43,89 @@ public class MinHash implements Serializable {
         return sig;
     }
 
+    // Weighted variant: each row keeps the element minimising -ln(u) / weight, so the chance two
+    // signatures agree on a row follows the weighted (probability) Jaccard of the two sets.
+    public int[] weightedSignature(long[] fingerprints, double[] weights) {
+        int[] sig = new int[numHashFunctions];
+        double[] best = new double[numHashFunctions];
+        Arrays.fill(sig, Integer.MAX_VALUE);
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        for (int e = 0; e < fingerprints.length; e++) {
+            int hash = fold(fingerprints[e]);
+            double weight = weights[e];
+            if (weight <= 0) {
+                continue;
+            }
+            for (int i = 0; i < numHashFunctions; i++) {
+                int value = hashFunctions.get(i).hash(hash);
+                double rank = -Math.log((value + 1.0) / (PRIME + 1.0)) / weight;
+                if (rank < best[i]) {
+                    best[i] = rank;
+                    sig[i] = value;
+                }
+            }
+        }
+        return sig;
+    }
+
+    // Same rows as signature()/weightedSignature(), but remembering which element won each row so
+    // a revised set can be folded in with update() instead of re-hashing every element.
+    public State state(long[] fingerprints, LongToDoubleFunction weightOf) {
+        State state = new State(numHashFunctions);
+        for (long fingerprint : fingerprints) {
+            offer(state, fingerprint, weightOf, null);
+        }
+        return state;
+    }
+
+    // Removed elements only matter for rows they currently win; those rows are rebuilt from the
+    // full current set, every other row just takes the added elements into account.
+    public State update(State previous, long[] added, long[] removed, long[] current, LongToDoubleFunction weightOf) {
+        State state = previous.copy();
+        boolean[] dirty = null;
+        long[] sortedRemoved = removed.clone();
+        Arrays.sort(sortedRemoved);
+        for (int i = 0; i < numHashFunctions && sortedRemoved.length > 0; i++) {
+            if (state.ranks[i] != Double.POSITIVE_INFINITY && Arrays.binarySearch(sortedRemoved, state.winners[i]) >= 0) {
+                if (dirty == null) {
+                    dirty = new boolean[numHashFunctions];
+                }
+                dirty[i] = true;
+                state.values[i] = Integer.MAX_VALUE;
+                state.ranks[i] = Double.POSITIVE_INFINITY;
+            }
+        }
+        if (dirty != null) {
+            for (long fingerprint : current) {
+                offer(state, fingerprint, weightOf, dirty);
+            }
+        }
+        for (long fingerprint : added) {
+            offer(state, fingerprint, weightOf, null);
+        }
+        return state;
+    }
+
+    private void offer(State state, long fingerprint, LongToDoubleFunction weightOf, boolean[] rows) {
+        double weight = weightOf == null ? 1.0 : weightOf.applyAsDouble(fingerprint);
+        if (weight <= 0) {
+            return;
+        }
+        int hash = fold(fingerprint);
+        for (int i = 0; i < numHashFunctions; i++) {
+            if (rows != null && !rows[i]) {
+                continue;
+            }
+            int value = hashFunctions.get(i).hash(hash);
+            double rank = weightOf == null ? value : -Math.log((value + 1.0) / (PRIME + 1.0)) / weight;
+            if (rank < state.ranks[i]) {
+                state.ranks[i] = rank;
+                state.values[i] = value;
+                state.winners[i] = fingerprint;
+            }
+        }
+    }
+
     public double similarity(int[] a, int[] b) {
         if (a.length != b.length) {
             throw new IllegalArgumentException("Signature lengths mismatch");
@@ -51,6 +139,42 @@ public class MinHash implements Serializable {
         return (double) matches / a.length;
     }
 
+    private static int fold(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    public static class State {
+        private final int[] values;
+        private final double[] ranks;
+        private final long[] winners;
+
+        State(int rows) {
+            values = new int[rows];
+            ranks = new double[rows];
+            winners = new long[rows];
+            Arrays.fill(values, Integer.MAX_VALUE);
+            Arrays.fill(ranks, Double.POSITIVE_INFINITY);
+        }
+
+        private State(State other) {
+            values = other.values.clone();
+            ranks = other.ranks.clone();
+            winners = other.winners.clone();
+        }
+
+        State copy() {
+            return new State(this);
+        }
+
+        public int[] signature() {
+            return values.clone();
+        }
+
+        public long sizeInBytes() {
+            return IndexFootprint.intArray(values.length) + 2 * IndexFootprint.longArray(ranks.length);
+        }
+    }
+
     private static class HashFn implements Serializable {
         private static final long serialVersionUID = 1L;
         private final long a;
@@ -5,6 +5,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 public class ShingleGenerator {
+    private static final int GALLOP_RATIO = 32;
     private final int shingleSize;
 
     public ShingleGenerator(int shingleSize) {
@@ -27,6 +28,94 @@ public class ShingleGenerator {
         return output;
     }
 
+    public static long[] fingerprints(Set<String> shingles) {
+        long[] output = new long[shingles.size()];
+        int i = 0;
+        for (String shingle : shingles) {
+            output[i++] = fingerprint(shingle);
+        }
+        Arrays.sort(output);
+        return output;
+    }
+
+    public static long fingerprint(String shingle) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < shingle.length(); i++) {
+            hash ^= shingle.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static int intersectionSize(long[] a, long[] b) {
+        if (a.length > b.length) {
+            return intersectionSize(b, a);
+        }
+        if ((long) a.length * GALLOP_RATIO < b.length) {
+            return gallopingIntersectionSize(a, b);
+        }
+        int i = 0;
+        int j = 0;
+        int shared = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+        }
+        return shared;
+    }
+
+    // A short query against a long document: gallop through the long side instead of walking it.
+    private static int gallopingIntersectionSize(long[] small, long[] large) {
+        int shared = 0;
+        int from = 0;
+        for (long value : small) {
+            int step = 1;
+            int to = from;
+            while (to < large.length && large[to] < value) {
+                from = to + 1;
+                to += step;
+                step <<= 1;
+            }
+            int found = Arrays.binarySearch(large, from, Math.min(to + 1, large.length), value);
+            if (found >= 0) {
+                shared++;
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+            if (from >= large.length) {
+                break;
+            }
+        }
+        return shared;
+    }
+
+    // How many of the (few) probes occur in a sorted set, by binary search rather than a full merge.
+    public static int countContained(long[] probes, long[] sorted) {
+        int found = 0;
+        for (long probe : probes) {
+            if (Arrays.binarySearch(sorted, probe) >= 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    public static double jaccard(long[] a, long[] b) {
+        if (a.length == 0 && b.length == 0) {
+            return 1.0;
+        }
+        int shared = intersectionSize(a, b);
+        return (double) shared / (a.length + b.length - shared);
+    }
+
     public static double jaccard(Set<String> a, Set<String> b) {
         if (a.isEmpty() && b.isEmpty()) {
             return 1.0;